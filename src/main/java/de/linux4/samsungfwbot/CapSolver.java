@@ -16,12 +16,12 @@
  */
 package de.linux4.samsungfwbot;
 
+import de.linux4.samsungfwbot.net.SharedHttpClient;
 import org.apache.commons.io.FileUtils;
 import org.json.JSONObject;
 
 import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.http.HttpRequest;
 import java.nio.charset.StandardCharsets;
 
 public class CapSolver {
@@ -65,29 +65,7 @@ public class CapSolver {
             retries++;
 
             try {
-                URL url = new URL(CAPSOLVER_CREATE);
-                HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-                conn.setRequestMethod("POST");
-                conn.setDoInput(true);
-                conn.setDoOutput(true);
-
-                PrintWriter writer = new PrintWriter(new OutputStreamWriter(conn.getOutputStream()));
-                writer.println(payload);
-                writer.close();
-
-                InputStream stream = conn.getErrorStream();
-                if (stream == null) {
-                    stream = conn.getInputStream();
-                }
-                BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
-                StringBuilder respBuilder = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    respBuilder.append(line).append('\n');
-                }
-                reader.close();
-
-                JSONObject resp = new JSONObject(respBuilder.toString());
+                JSONObject resp = new JSONObject(post(CAPSOLVER_CREATE, payload));
                 String taskId = resp.getString("taskId");
                 if (taskId != null) {
                     String status = "";
@@ -99,24 +77,7 @@ public class CapSolver {
                         payload.put("clientKey", apiKey);
                         payload.put("taskId", taskId);
 
-                        url = new URL(CAPSOLVER_GET);
-                        conn = (HttpURLConnection) url.openConnection();
-                        conn.setRequestMethod("POST");
-                        conn.setDoInput(true);
-                        conn.setDoOutput(true);
-
-                        writer = new PrintWriter(new OutputStreamWriter(conn.getOutputStream()));
-                        writer.println(payload);
-                        writer.close();
-
-                        reader = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-                        respBuilder = new StringBuilder();
-                        while ((line = reader.readLine()) != null) {
-                            respBuilder.append(line).append('\n');
-                        }
-                        reader.close();
-
-                        resp = new JSONObject(respBuilder.toString());
+                        resp = new JSONObject(post(CAPSOLVER_GET, payload));
                         status = resp.getString("status");
                     }
 
@@ -138,6 +99,15 @@ public class CapSolver {
         return null;
     }
 
+    private static String post(String url, JSONObject payload) throws IOException {
+        HttpRequest request = SharedHttpClient.newRequest(url)
+                .POST(HttpRequest.BodyPublishers.ofString(payload.toString(), StandardCharsets.UTF_8))
+                .header("Content-Type", "application/json")
+                .build();
+
+        return SharedHttpClient.bodyAsString(SharedHttpClient.send(request));
+    }
+
     public String solveCached(CaptchaType type, String siteKey, String siteUrl) {
         File file = new File("db/capsolver/" + siteKey);
 
@@ -0,0 +1,67 @@
+/*
+  Copyright (C) 2024  Tim Zimmermann <tim@linux4.de>
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as
+  published by the Free Software Foundation, either version 3 of the
+  License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.linux4.samsungfwbot;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Immutable snapshot of all known models and their regions, models are sorted
+public class DeviceCatalog {
+
+    private static final String[] NO_REGIONS = new String[0];
+
+    private final String[] models;
+    private final String[][] regions;
+
+    public DeviceCatalog(Map<String, Set<String>> regionsByModel) {
+        models = regionsByModel.keySet().toArray(new String[0]);
+        Arrays.sort(models);
+        regions = new String[models.length][];
+
+        for (int i = 0; i < models.length; i++) {
+            String[] modelRegions = regionsByModel.get(models[i]).toArray(NO_REGIONS);
+
+            // Region codes repeat across thousands of models
+            for (int j = 0; j < modelRegions.length; j++) {
+                modelRegions[j] = modelRegions[j].intern();
+            }
+            Arrays.sort(modelRegions);
+            regions[i] = modelRegions;
+        }
+    }
+
+    public int size() {
+        return models.length;
+    }
+
+    public List<String> getModels() {
+        return List.of(models);
+    }
+
+    public boolean contains(String model) {
+        return Arrays.binarySearch(models, model) >= 0;
+    }
+
+    public List<String> getRegions(String model) {
+        int index = Arrays.binarySearch(models, model);
+
+        return index >= 0 ? List.of(regions[index]) : List.of();
+    }
+
+}
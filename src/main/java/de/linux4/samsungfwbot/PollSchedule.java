@@ -0,0 +1,109 @@
+/*
+  Copyright (C) 2024  Tim Zimmermann <tim@linux4.de>
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as
+  published by the Free Software Foundation, either version 3 of the
+  License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.linux4.samsungfwbot;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+// Decides when a model is checked next, based on how often its firmware changed in the past.
+// Due times carry a per model offset, so checks are spread over time instead of hitting all at once.
+public class PollSchedule {
+
+    public static final Duration ROUND_INTERVAL = Duration.ofMinutes(1);
+    private static final Duration DEFAULT_INTERVAL = Duration.ofHours(1);
+    private static final Duration MIN_INTERVAL = Duration.ofMinutes(30);
+    private static final Duration STALE_INTERVAL = Duration.ofHours(24);
+    // Without a known cadence, a model is stale after this long without a new firmware
+    private static final Duration STALE_AFTER = Duration.ofDays(180);
+    // A model is also stale once it missed this many of its usual releases
+    private static final int STALE_MISSED_RELEASES = 3;
+    private static final double JITTER = 0.1;
+    // Oneshot runs are started every 6h by the check workflow, everything due before the next run is checked now
+    private static final Duration ONESHOT_HORIZON = Duration.ofHours(6);
+
+    private final SamsungFWDatabase db;
+    private final long start = System.currentTimeMillis();
+
+    public PollSchedule(SamsungFWDatabase db) {
+        this.db = db;
+    }
+
+    public static long getInterval(SamsungFWDatabase.ModelState state, long now) {
+        if (state == null || state.lastChange() == 0)
+            return DEFAULT_INTERVAL.toMillis();
+
+        long sinceChange = now - state.lastChange();
+        long cadence = state.changeInterval();
+
+        if (cadence == 0)
+            return sinceChange > STALE_AFTER.toMillis() ? STALE_INTERVAL.toMillis() : DEFAULT_INTERVAL.toMillis();
+        if (sinceChange > STALE_MISSED_RELEASES * cadence)
+            return STALE_INTERVAL.toMillis();
+
+        // Poll closely around the time the next release is expected, further away it approaches the default
+        long distance = Math.abs(sinceChange - cadence) - cadence / 8;
+        if (distance <= 0)
+            return MIN_INTERVAL.toMillis();
+
+        long range = DEFAULT_INTERVAL.toMillis() - MIN_INTERVAL.toMillis();
+        return MIN_INTERVAL.toMillis() + (long) (range * Math.min(1.0, distance / (cadence / 2.0)));
+    }
+
+    public long getNextCheck(String model, long now) {
+        SamsungFWDatabase.ModelState state = db.getState(model);
+        long interval = getInterval(state, now);
+
+        // Never checked: spread the first checks over the default interval
+        if (state == null || state.lastCheck() == 0)
+            return start + Math.floorMod(model.hashCode(), DEFAULT_INTERVAL.toMillis());
+
+        // Derived from the last check, so models that were checked together drift apart
+        double jitter = (Math.floorMod(Long.hashCode(state.lastCheck() ^ model.hashCode()), 1000) / 1000.0 - 0.5)
+                * 2 * JITTER;
+        return state.lastCheck() + (long) (interval * (1 + jitter));
+    }
+
+    // Models that are due, most overdue first. A oneshot run takes everything due until the next run,
+    // otherwise a round takes at most its share of the catalog, which keeps a backlog (e.g. after a restart)
+    // from turning into a burst.
+    public List<String> getDue(List<String> models, long now, boolean oneshot) {
+        List<String> due = new ArrayList<>();
+        long until = oneshot ? now + ONESHOT_HORIZON.toMillis() : now;
+
+        for (String model : models) {
+            SamsungFWDatabase.ModelState state = db.getState(model);
+
+            if (oneshot && (state == null || state.lastCheck() == 0) || getNextCheck(model, now) <= until)
+                due.add(model);
+        }
+
+        if (oneshot)
+            return due;
+
+        due.sort(Comparator.comparingLong(model -> getNextCheck(model, now)));
+        int limit = (int) Math.max(1, 2 * models.size() * ROUND_INTERVAL.toMillis() / DEFAULT_INTERVAL.toMillis());
+
+        return due.size() > limit ? new ArrayList<>(due.subList(0, limit)) : due;
+    }
+
+    public void setChecked(String model, long time) {
+        db.setChecked(model, time);
+    }
+
+}
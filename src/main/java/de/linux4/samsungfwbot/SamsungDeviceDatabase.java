@@ -16,9 +16,11 @@
  */
 package de.linux4.samsungfwbot;
 
+import java.io.File;
 import java.sql.*;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -27,6 +29,9 @@ public class SamsungDeviceDatabase {
     private static final String file = "db/devices.db";
 
     private Connection conn = null;
+    private DeviceCatalog catalog = null;
+    private long catalogModified = -1;
+    private long catalogSize = -1;
 
     public SamsungDeviceDatabase() {
         try {
@@ -37,66 +42,102 @@ public class SamsungDeviceDatabase {
             conn.prepareStatement("CREATE TABLE IF NOT EXISTS regions (Model varchar(255), Region varchar(3), FOREIGN KEY (Model) REFERENCES models(Model))").executeUpdate();
 
             conn.prepareStatement("CREATE TABLE IF NOT EXISTS details (DeviceID INT, Category varchar(255), Name varchar(255), Value varchar(255), FOREIGN KEY (DeviceID) REFERENCES devices(DeviceID))").executeUpdate();
+
+            conn.prepareStatement("CREATE INDEX IF NOT EXISTS models_DeviceID ON models (DeviceID)").executeUpdate();
+            conn.prepareStatement("CREATE INDEX IF NOT EXISTS regions_Model ON regions (Model)").executeUpdate();
+            conn.prepareStatement("CREATE INDEX IF NOT EXISTS details_DeviceID ON details (DeviceID)").executeUpdate();
+
+            // Models listed for more than one device used to get their regions once per device
+            try (ResultSet rs = conn.prepareStatement("SELECT 1 FROM sqlite_master WHERE type = 'index' AND name = 'regions_Model_Region'").executeQuery()) {
+                if (!rs.next()) {
+                    conn.prepareStatement("DELETE FROM regions WHERE rowid NOT IN (SELECT MIN(rowid) FROM regions GROUP BY Model, Region)").executeUpdate();
+                    conn.prepareStatement("CREATE UNIQUE INDEX regions_Model_Region ON regions (Model, Region)").executeUpdate();
+                }
+            }
         } catch (SQLException ex) {
             ex.printStackTrace();
         }
     }
 
     public void save(SamsungDeviceScraper.DeviceMeta deviceMeta) {
-        try {
-            // Delete old data
-            PreparedStatement ps = conn.prepareStatement("SELECT Model FROM models WHERE DeviceID = " + deviceMeta.id);
-            ResultSet rs = ps.executeQuery();
-            while (rs.next()) {
-                String model = rs.getString("Model");
+        save(List.of(deviceMeta));
+    }
 
-                ps = conn.prepareStatement("DELETE FROM regions WHERE Model = ?");
-                ps.setString(1, model);
-                ps.executeUpdate();
-            }
+    // Replaces all given devices in a single transaction
+    public void save(List<SamsungDeviceScraper.DeviceMeta> devices) {
+        try (PreparedStatement deleteRegions = conn.prepareStatement("DELETE FROM regions WHERE Model IN (SELECT Model FROM models WHERE DeviceID = ?)");
+             PreparedStatement deleteDetails = conn.prepareStatement("DELETE FROM details WHERE DeviceID = ?");
+             PreparedStatement deleteModels = conn.prepareStatement("DELETE FROM models WHERE DeviceID = ?");
+             PreparedStatement deleteDevice = conn.prepareStatement("DELETE FROM devices WHERE DeviceID = ?");
+             PreparedStatement insertDevice = conn.prepareStatement("INSERT INTO devices (DeviceID, Name, URL, ImgURL, ShortDescription) "
+                     + "VALUES (?, ?, ?, ?, ?)");
+             // A model listed for more than one device stays with the first one
+             PreparedStatement insertModel = conn.prepareStatement("INSERT OR IGNORE INTO models (DeviceID, Model) VALUES (?, ?)");
+             PreparedStatement insertRegion = conn.prepareStatement("INSERT OR IGNORE INTO regions (Model, Region) VALUES (?, ?)");
+             PreparedStatement insertDetail = conn.prepareStatement("INSERT INTO details (DeviceID, Category, Name, Value) VALUES (?, ?, ?, ?)")) {
+            conn.setAutoCommit(false);
+
+            for (SamsungDeviceScraper.DeviceMeta deviceMeta : devices) {
+                // Delete old data
+                for (PreparedStatement ps : List.of(deleteRegions, deleteDetails, deleteModels, deleteDevice)) {
+                    ps.setInt(1, deviceMeta.id);
+                    ps.addBatch();
+                }
 
-            conn.prepareStatement("DELETE FROM details WHERE DeviceID = " + deviceMeta.id).executeUpdate();
-            conn.prepareStatement("DELETE FROM models WHERE DeviceID = " + deviceMeta.id).executeUpdate();
-            conn.prepareStatement("DELETE FROM devices WHERE DeviceID = " + deviceMeta.id).executeUpdate();
-
-            // Insert new data
-            ps = conn.prepareStatement("INSERT INTO devices (DeviceID, Name, URL, ImgURL, ShortDescription) "
-                    + "VALUES (?, ?, ?, ?, ?)");
-            ps.setInt(1, deviceMeta.id);
-            ps.setString(2, deviceMeta.name);
-            ps.setString(3, deviceMeta.url);
-            ps.setString(4, deviceMeta.imgURL);
-            ps.setString(5, deviceMeta.shortDescription);
-            ps.executeUpdate();
-
-            for (String model : deviceMeta.models) {
-                ps = conn.prepareStatement("INSERT INTO models (DeviceID, Model) VALUES (?, ?)");
-                ps.setInt(1, deviceMeta.id);
-                ps.setString(2, model);
-                ps.executeUpdate();
-            }
+                // Insert new data
+                insertDevice.setInt(1, deviceMeta.id);
+                insertDevice.setString(2, deviceMeta.name);
+                insertDevice.setString(3, deviceMeta.url);
+                insertDevice.setString(4, deviceMeta.imgURL);
+                insertDevice.setString(5, deviceMeta.shortDescription);
+                insertDevice.addBatch();
+
+                for (String model : deviceMeta.models) {
+                    insertModel.setInt(1, deviceMeta.id);
+                    insertModel.setString(2, model);
+                    insertModel.addBatch();
+                }
 
-            for (String model : deviceMeta.regions.keySet()) {
-                for (String region : deviceMeta.regions.get(model)) {
-                    ps = conn.prepareStatement("INSERT INTO regions (Model, Region) VALUES (?, ?)");
-                    ps.setString(1, model);
-                    ps.setString(2, region);
-                    ps.executeUpdate();
+                for (String model : deviceMeta.regions.keySet()) {
+                    for (String region : deviceMeta.regions.get(model)) {
+                        insertRegion.setString(1, model);
+                        insertRegion.setString(2, region);
+                        insertRegion.addBatch();
+                    }
                 }
-            }
 
-            for (String category : deviceMeta.details.keySet()) {
-                for (String property : deviceMeta.details.get(category).keySet()) {
-                    ps = conn.prepareStatement("INSERT INTO details (DeviceID, Category, Name, Value) VALUES (?, ?, ?, ?)");
-                    ps.setInt(1, deviceMeta.id);
-                    ps.setString(2, category);
-                    ps.setString(3, property);
-                    ps.setString(4, deviceMeta.details.get(category).get(property));
-                    ps.executeUpdate();
+                for (String category : deviceMeta.details.keySet()) {
+                    for (String property : deviceMeta.details.get(category).keySet()) {
+                        insertDetail.setInt(1, deviceMeta.id);
+                        insertDetail.setString(2, category);
+                        insertDetail.setString(3, property);
+                        insertDetail.setString(4, deviceMeta.details.get(category).get(property));
+                        insertDetail.addBatch();
+                    }
                 }
             }
+
+            // regions have to go before the models they are looked up by
+            for (PreparedStatement ps : List.of(deleteRegions, deleteDetails, deleteModels, deleteDevice,
+                    insertDevice, insertModel, insertRegion, insertDetail)) {
+                ps.executeBatch();
+            }
+
+            conn.commit();
         } catch (SQLException e) {
             e.printStackTrace();
+
+            try {
+                conn.rollback();
+            } catch (SQLException ex) {
+                ex.printStackTrace();
+            }
+        } finally {
+            try {
+                conn.setAutoCommit(true);
+            } catch (SQLException ex) {
+                ex.printStackTrace();
+            }
         }
     }
 
@@ -167,6 +208,38 @@ public class SamsungDeviceDatabase {
         return models;
     }
 
+    // Cached until devices.db changes on disk
+    public synchronized DeviceCatalog getCatalog() {
+        File dbFile = new File(file);
+
+        if (catalog == null || dbFile.lastModified() != catalogModified || dbFile.length() != catalogSize) {
+            catalogModified = dbFile.lastModified();
+            catalogSize = dbFile.length();
+            catalog = loadCatalog();
+        }
+
+        return catalog;
+    }
+
+    private DeviceCatalog loadCatalog() {
+        Map<String, Set<String>> regionsByModel = new HashMap<>();
+
+        try (ResultSet rs = conn.prepareStatement("SELECT models.Model, regions.Region FROM models "
+                + "LEFT JOIN regions ON regions.Model = models.Model").executeQuery()) {
+            while (rs.next()) {
+                Set<String> regions = regionsByModel.computeIfAbsent(rs.getString(1), model -> new HashSet<>());
+                String region = rs.getString(2);
+
+                if (region != null)
+                    regions.add(region);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+
+        return new DeviceCatalog(regionsByModel);
+    }
+
     public Set<String> getRegionsByModel(String model) {
         Set<String> regions = new HashSet<>();
 
@@ -17,7 +17,7 @@
 package de.linux4.samsungfwbot;
 
 import com.google.common.collect.Streams;
-import org.jsoup.Jsoup;
+import de.linux4.samsungfwbot.net.SharedHttpClient;
 import org.jsoup.nodes.Document;
 import org.jsoup.select.Elements;
 
@@ -44,18 +44,10 @@ public class SamsungDeviceScraper {
     private static final String DEVICES_LIST_URL = GSMARENA_BASE_URL + "samsung-phones-f-9-0-p%d.php";
     private static final String REGIONS_URL = SAMFW_BASE_URL + "firmware/%s";
     private static final int FETCH_TIMEOUT = 1 * 60 * 1000;
-    private static final int FETCH_INTERVAL = 3 * 1000;
-
-    private static void sleep(int ms) {
-        try {
-            Thread.sleep(ms);
-        } catch (InterruptedException ignored) {
-        }
-    }
 
+    // Throttled per host by the shared client's rate limiter
     private static Document request(String url) throws IOException {
-        sleep(FETCH_INTERVAL);
-        return Jsoup.connect(url).timeout(FETCH_TIMEOUT).get();
+        return SharedHttpClient.get(url, FETCH_TIMEOUT);
     }
 
     private static List<DeviceMeta> fetchPage(int pageNumber) {
@@ -194,6 +186,6 @@ public class SamsungDeviceScraper {
 
     private static void saveDevicesToDb(List<DeviceMeta> devices) {
         SamsungDeviceDatabase database = new SamsungDeviceDatabase();
-        devices.forEach(device -> database.save(device));
+        database.save(devices);
     }
 }
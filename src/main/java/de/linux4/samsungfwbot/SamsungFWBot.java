@@ -17,24 +17,22 @@
 package de.linux4.samsungfwbot;
 
 import de.linux4.samsungfwbot.io.ArchiveUtils;
-import de.linux4.samsungfwbot.io.FileUtilsInternal;
-import de.linux4.samsungfwbot.jgit.ForceAddFileTreeIterator;
-import org.apache.commons.io.FileUtils;
-import org.eclipse.jgit.api.CreateBranchCommand;
-import org.eclipse.jgit.api.Git;
-import org.eclipse.jgit.api.PushCommand;
-import org.eclipse.jgit.api.RmCommand;
-import org.eclipse.jgit.api.errors.GitAPIException;
-import org.eclipse.jgit.api.errors.NoFilepatternException;
-import org.eclipse.jgit.api.errors.RefAlreadyExistsException;
-import org.eclipse.jgit.transport.RefSpec;
-import org.eclipse.jgit.transport.URIish;
+import de.linux4.samsungfwbot.io.Trash;
+import de.linux4.samsungfwbot.jgit.ArchiveImporter;
+import de.linux4.samsungfwbot.jgit.KernelMirror;
+import de.linux4.samsungfwbot.jgit.ParallelAdd;
+import de.linux4.samsungfwbot.net.SegmentedDownload;
+import de.linux4.samsungfwbot.net.SharedHttpClient;
+import org.apache.commons.compress.archivers.zip.UnsupportedZipFeatureException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.transport.UsernamePasswordCredentialsProvider;
 import org.telegram.telegrambots.client.okhttp.OkHttpTelegramClient;
 import org.telegram.telegrambots.longpolling.TelegramBotsLongPollingApplication;
 import org.telegram.telegrambots.longpolling.util.LongPollingSingleThreadUpdateConsumer;
 import org.telegram.telegrambots.meta.api.methods.groupadministration.SetChatDescription;
-import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
 import org.telegram.telegrambots.meta.api.objects.Update;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
@@ -44,22 +42,29 @@ import org.telegram.telegrambots.meta.generics.TelegramClient;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.http.HttpResponse;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.Enumeration;
 import java.util.List;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadPoolExecutor;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 public class SamsungFWBot implements LongPollingSingleThreadUpdateConsumer{
 
     public static final String KERNEL_REPO_URL = "https://github.com/Linux4/samsung_kernel";
     public static final String GH_USER = "Linux4";
     public static final int MAX_CONCURRENT_DOWNLOADS = 2;
+    public static final String KERNEL_MIRROR_DIR = "kernel-mirror.git";
+    // Has to be on the same file system as the kernel work trees
+    public static final String TRASH_DIR = "trash";
+    // Kernel sources go straight from the archive into git objects, "worktree" extracts and adds them instead
+    public static final boolean DIRECT_IMPORT = !"worktree".equals(System.getProperty("samsungfwbot.kernel.import"));
+    public static final long HOUSEKEEPING_INTERVAL = 60 * 60 * 1000; // 1h
 
     public static void main(String[] args) {
         if (args.length != 4 && args.length != 5) {
@@ -91,7 +96,7 @@ public class SamsungFWBot implements LongPollingSingleThreadUpdateConsumer{
 
     private void sleep() {
         try {
-            Thread.sleep(3 * 1000); // 3s - prevent telegram spam protection
+            Thread.sleep(3 * 1000); // 3s
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
@@ -102,8 +107,7 @@ public class SamsungFWBot implements LongPollingSingleThreadUpdateConsumer{
     private final String channelKernel;
     private final boolean oneshot;
     private final TelegramClient telegramClient;
-    private boolean checksFinished = false;
-    private final ConcurrentLinkedQueue<TelegramMessage> messageQueue = new ConcurrentLinkedQueue<>();
+    private final TelegramDispatcher dispatcher;
 
     public SamsungFWBot(String botToken, String capSolverToken, String channelFw, String channelKernel, boolean oneshot) {
         this.capSolver = new CapSolver(capSolverToken);
@@ -112,6 +116,7 @@ public class SamsungFWBot implements LongPollingSingleThreadUpdateConsumer{
         this.oneshot = oneshot;
 
         this.telegramClient = new OkHttpTelegramClient(botToken);
+        this.dispatcher = new TelegramDispatcher(telegramClient);
     }
 
     public void run() {
@@ -119,88 +124,73 @@ public class SamsungFWBot implements LongPollingSingleThreadUpdateConsumer{
         SamsungFWDatabase kernelDb = new SamsungFWDatabase("db/samsungkernel.db");
         SamsungDeviceDatabase deviceDb = new SamsungDeviceDatabase();
 
-        ExecutorService messageExecutor = Executors.newSingleThreadExecutor();
-        ThreadPoolExecutor firmwareCheckExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(10);
-        ThreadPoolExecutor kernelCheckExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(10);
+        CheckScheduler firmwareCheckScheduler = new CheckScheduler();
+        CheckScheduler kernelCheckScheduler = new CheckScheduler();
         ThreadPoolExecutor kernelDownloadExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(
                 MAX_CONCURRENT_DOWNLOADS);
+        KernelMirror mirror;
+        Trash trash;
+        try {
+            mirror = new KernelMirror(new File(KERNEL_MIRROR_DIR), KERNEL_REPO_URL,
+                    new UsernamePasswordCredentialsProvider(GH_USER, System.getenv("GH_TOKEN")));
+            trash = new Trash(new File(TRASH_DIR));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
 
-        messageExecutor.submit(() -> {
-            System.out.println("Message thread start");
-            while (!messageQueue.isEmpty() || !checksFinished) {
-                System.out.println("Message Queue Size: " + messageQueue.size() + " checksFinished=" + checksFinished);
-                if (!messageQueue.isEmpty()) {
-                    TelegramMessage message = messageQueue.poll();
-
-                    // Telegram message length limit: 4096
-                    SendMessage sm = new SendMessage(message.getChannelId(),
-                            message.getText().substring(0, Math.min(message.getText().length(), 4096)));
-                    sm.setChatId(message.getChannelId());
-                    //sm.setParseMode("HTML");
-
-                    if (message.getKeyboard() != null)
-                        sm.setReplyMarkup(message.getKeyboard());
-
-                    for (int i = 0; i < 5; i++) {
-                        try {
-                            telegramClient.execute(sm);
-                            break;
-                        } catch (TelegramApiException e) {
-                            e.printStackTrace();
-                            sleep();
-                        }
-                    }
-                }
-                sleep();
-            }
-            System.out.println("Message thread end");
+        // Messages of a previous run that never made it out
+        db.getUnsentMessages().forEach(dispatcher::submit);
+        kernelDb.getUnsentMessages().forEach(dispatcher::submit);
 
-            if (oneshot)
-                System.exit(0);
-        });
+        PollSchedule schedule = new PollSchedule(db);
+        long lastHousekeeping = 0;
 
         do {
-            for (String model : deviceDb.getAllModels()) {
-                System.out.println("Processing model " + model);
+            DeviceCatalog catalog = deviceDb.getCatalog();
+            long now = System.currentTimeMillis();
+            // Oneshot runs check everything due before the next run, otherwise checks are spread over the rounds
+            List<String> due = schedule.getDue(catalog.getModels(), now, oneshot);
+            SamsungFWInfo.clearChangelogs();
 
-                firmwareCheckExecutor.submit(() -> {
-                    boolean found = false;
+            if (!due.isEmpty())
+                System.out.println("Checking " + due.size() + " of " + catalog.size() + " models");
 
-                    for (String region : deviceDb.getRegionsByModel(model)) {
-                        SamsungFWInfo info = SamsungFWInfo.fetchLatest(model, region);
+            for (String model : due) {
+                System.out.println("Processing model " + model);
+                schedule.setChecked(model, now);
+                List<String> regions = catalog.getRegions(model);
 
-                        if (info != null) {
-                            System.out.printf("Found firmware %s/%s for model %s%n", info.getPDA(), region, model);
-                            found = true;
+                firmwareCheckScheduler.submit(() -> {
+                    SamsungFWInfo info = fetchLatest(model, regions);
 
+                    if (info != null) {
+                        // One decision per model, even if a previous check of it is still running
+                        synchronized (db) {
                             if (info.isNewerThan(db.getPDA(model))) {
                                 InlineKeyboardMarkup keyboard =
                                         InlineKeyboardMarkup.builder().keyboardRow(
                                                 new InlineKeyboardRow(InlineKeyboardButton.builder().text("Download")
                                                         .url(info.getDownloadURL()).build())).build();
 
-                                messageQueue.add(new TelegramMessage(channelFw, "New firmware update available \n \n"
-                                        + "Device: " + info.getDeviceName() + " \n"
+                                String securityPatch = SamsungFWInfo.formatDate(info.getSecurityPatch());
+                                dispatcher.submit(db.setPDA(model, info.getPDA(), new TelegramMessage(channelFw, "New firmware update available \n \n",
+                                        "Device: " + info.getDeviceName() + " \n"
                                         + "Model: " + info.getModel() + " \n"
                                         + "OS Version: " + info.getOSVersion() + " \n"
                                         + "PDA Version: " + info.getPDA() + " \n"
-                                        + "Release Date: " + SamsungFWInfo.DATE_FORMAT.format(info.getBuildDate()) + " \n"
-                                        + "Security Patch Level: " + SamsungFWInfo.DATE_FORMAT.format(info.getSecurityPatch()) + " \n\n"
+                                        + "Release Date: " + SamsungFWInfo.formatDate(info.getBuildDate()) + " \n"
+                                        + "Security Patch Level: " + securityPatch + " \n\n"
                                         + "Changelog:  \n"
                                         + info.getChangelog() + " \n",
-                                        keyboard));
-
-                                db.setPDA(model, info.getPDA());
+                                        keyboard, "Security Patch Level: " + securityPatch, info.getModel())));
                             }
                         }
-                    }
-
-                    if (!found) {
-                        System.err.println("ERROR: Model " + model + " not found in any known region! Known Regions: " + deviceDb.getRegionsByModel(model));
+                    } else {
+                        System.err.println("ERROR: Model " + model + " not found in any known region! Known Regions: " + regions);
                     }
                 });
 
-                kernelCheckExecutor.submit(() -> {
+                kernelCheckScheduler.submit(() -> {
                     SamsungKernelInfo info = SamsungKernelInfo.fetchLatest(model);
 
                     if (info != null) {
@@ -209,101 +199,129 @@ public class SamsungFWBot implements LongPollingSingleThreadUpdateConsumer{
                             String oldPDA = kernelDb.getPDA(model);
                             kernelDb.setPDA(model, info.getPDA());
 
+                            info.deleteStaleDownloads(new File("."));
+
                             kernelDownloadExecutor.submit(() -> {
                                 File result = null, tmpDir = null;
+                                ArchiveImporter importer = null;
+                                Repository workTree = null;
+                                String tag = model + '/' + info.getPDA();
+                                long importStamp = 0;
+                                boolean pushQueued = false;
                                 try {
-                                    System.out.println("Downloading kernel source for " + model);
-                                    result = info.download(capSolver, new File("."));
+                                    // The download is streamed straight into the repository, so that has to be ready first
+                                    ObjectId parent = null;
+                                    try {
+                                        parent = mirror.fetch(model);
+                                    } catch (Exception ignored) {
 
-                                    if (result != null) {
-                                        System.out.println("Uploading kernel source for " + model);
-                                        ZipFile zipFile = null;
-                                        if (ArchiveUtils.isZip(result))
-                                            zipFile = new ZipFile(result);
+                                    }
+
+                                    if (mirror.hasTag(model, tag)) {
+                                        System.err.println(info.getPDA() + " is already pushed, skipping!");
+                                        return;
+                                    }
+
+                                    // Objects the import finds already present have to stay until its push is done
+                                    importStamp = mirror.beginImport();
+                                    boolean patch = info.getPatchKernel() != null;
+                                    ObjectId baseTree = patch && parent != null ? mirror.getTree(parent) : null;
+
+                                    // Either straight into git objects or through a work tree of its own
+                                    if (DIRECT_IMPORT) {
+                                        importer = new ArchiveImporter(mirror.getRepository(), baseTree);
+                                    } else {
                                         tmpDir = new File("./samsung_kernel_" + model);
-                                        FileUtilsInternal.deleteRecursively(tmpDir);
+                                        trash.discard(tmpDir);
                                         if (!tmpDir.mkdir()) System.err.println("Failed to create " + tmpDir);
-                                        Git git = Git.init().setDirectory(tmpDir).call();
-                                        git.remoteAdd().setName("origin").setUri(new URIish(KERNEL_REPO_URL)).call();
-                                        try {
-                                            git.fetch().setRefSpecs(new RefSpec("refs/heads/" + model)).call();
-                                            git.checkout().setCreateBranch(true).setName(model)
-                                                    .setUpstreamMode(CreateBranchCommand.SetupUpstreamMode.TRACK)
-                                                    .setStartPoint("FETCH_HEAD").call();
-                                            git.pull().call();
-                                        } catch (Exception ignored) {
+                                        workTree = mirror.openWorkTree(tmpDir);
+                                        // Without a patch the index starts out empty, so everything not in the archive is removed
+                                        if (baseTree != null)
+                                            KernelMirror.checkout(workTree, baseTree);
+                                    }
+                                    List<String> ignoredFiles = importer != null ? importer.getIgnoredFiles() : new ArrayList<>();
+                                    ArchiveUtils.KernelSourceSink sink = importer != null ? importer
+                                            : ArchiveUtils.directorySink(tmpDir, ignoredFiles);
 
+                                    boolean downloaded = false;
+                                    System.out.println("Downloading kernel source for " + model);
+                                    HttpResponse<InputStream> res = info.requestDownload(capSolver);
+
+                                    if (res != null && SegmentedDownload.supportsRanges(res)) {
+                                        // Resumable, an interrupted download continues in the next attempt
+                                        result = info.getDownloadFile(new File("."));
+                                        SamsungKernelInfo.download(res, result);
+                                        ArchiveUtils.readKernelSource(result, sink, patch);
+                                        downloaded = true;
+                                    } else if (res != null) {
+                                        try (InputStream in = SharedHttpClient.body(res)) {
+                                            ArchiveUtils.readKernelSource(in, sink, patch);
+                                            downloaded = true;
+                                        } catch (UnsupportedZipFeatureException ex) {
+                                            // Can't be read front to back, spool it and read it from disk
+                                            System.err.println("Streaming " + info + " failed, downloading it first: " + ex.getMessage());
+                                            result = info.download(capSolver, new File("."));
+
+                                            if (result != null) {
+                                                // Entries read so far are simply read again
+                                                ignoredFiles.clear();
+                                                ArchiveUtils.readKernelSource(result, sink, patch);
+                                                downloaded = true;
+                                            }
                                         }
+                                    }
 
-                                        List<String> ignoredFiles = new ArrayList<>();
-                                        if (info.getPatchKernel() != null) {
-                                            Enumeration<? extends ZipEntry> entries = zipFile.entries();
-                                            for (ZipEntry entry = entries.nextElement(); entries.hasMoreElements(); entry = entries.nextElement()) {
-                                                if (entry.getName().startsWith("Kernel/")) {
-                                                    if (entry.getSize() <= ArchiveUtils.MAX_FILE_SIZE) {
-                                                        File output = new File(tmpDir, entry.getName().substring("Kernel/".length()));
-                                                        FileUtils.copyInputStreamToFile(zipFile.getInputStream(entry), output);
-                                                    } else {
-                                                        ignoredFiles.add(entry.getName().substring("Kernel/".length()));
-                                                    }
-                                                }
-                                            }
-                                        } else {
-                                            try {
-                                                gitRm(git, git.rm(), git.getRepository().getWorkTree()).call();
-                                            } catch (NoFilepatternException ignored) {
+                                    if (downloaded) {
+                                        // A partial download of an earlier attempt isn't needed anymore
+                                        if (result == null)
+                                            SegmentedDownload.delete(info.getDownloadFile(new File(".")));
+                                        System.out.println("Uploading kernel source for " + model);
 
-                                            }
-                                            File kernelTar = new File("/tmp/Kernel-" + info.getPDA() + ".tar.gz");
-                                            if (zipFile != null) {
-                                                ZipEntry kernel = zipFile.getEntry("Kernel.tar.gz");
-                                                FileUtils.copyInputStreamToFile(zipFile.getInputStream(kernel), kernelTar);
-                                            } else {
-                                                kernelTar = result;
-                                            }
+                                        StringBuilder extraBuilder = new StringBuilder();
+                                        if (ignoredFiles.size() > 0) {
+                                            extraBuilder.append("\n\nThe following files were removed because they exceed github's file size limit:");
 
-                                            ignoredFiles.addAll(ArchiveUtils.extractTarGz(kernelTar, tmpDir));
-                                            if (!kernelTar.delete()) System.err.println("Failed to delete " + result);
-                                        }
-                                        if (zipFile != null) {
-                                            zipFile.close();
-                                            if (!result.delete()) System.err.println("Failed to delete " + result);
+                                            for (String ignoredFile : ignoredFiles) {
+                                                extraBuilder.append("\n - ");
+                                                extraBuilder.append(ignoredFile);
+                                            }
                                         }
+                                        String message = model + ": Import " + info.getPDA() + " kernel source" + extraBuilder;
+                                        PersonIdent author = new PersonIdent("github-actions[bot]", "41898282+github-actions[bot]@users.noreply.github.com");
 
-                                        try {
-                                            StringBuilder extraBuilder = new StringBuilder();
-                                            if (ignoredFiles.size() > 0) {
-                                                extraBuilder.append("\n\nThe following files were removed because they exceed github's file size limit:");
-
-                                                for (String ignoredFile : ignoredFiles) {
-                                                    extraBuilder.append("\n - ");
-                                                    extraBuilder.append(ignoredFile);
-                                                }
+                                        ObjectId tree;
+                                        if (importer != null) {
+                                            tree = importer.writeTree();
+                                        } else {
+                                            ParallelAdd.add(workTree);
+                                            try (ObjectInserter inserter = workTree.newObjectInserter()) {
+                                                tree = workTree.readDirCache().writeTree(inserter);
+                                                inserter.flush();
                                             }
-
-                                            git.add().setWorkingTreeIterator(new ForceAddFileTreeIterator(git.getRepository())).addFilepattern(".").call();
-                                            git.commit().setMessage(model + ": Import " + info.getPDA() + " kernel source" + extraBuilder)
-                                                    .setAuthor("github-actions[bot]", "41898282+github-actions[bot]@users.noreply.github.com")
-                                                    .setSign(false).call();
-                                            git.tag().setName(model + '/' + info.getPDA()).call();
-                                            PushCommand push = git.push().setRemote("origin").setRefSpecs(new RefSpec("HEAD:refs/heads/" + model)).setPushTags();
-                                            push.setCredentialsProvider(new UsernamePasswordCredentialsProvider(GH_USER, System.getenv("GH_TOKEN")));
-                                            push.call();
-
-                                            InlineKeyboardMarkup keyboard =
-                                                    InlineKeyboardMarkup.builder().keyboardRow(
-                                                            new InlineKeyboardRow(InlineKeyboardButton.builder().text("View")
-                                                                    .url(KERNEL_REPO_URL + "/tree/" + model + '/' + info.getPDA()).build())).build();
-                                            messageQueue.add(new TelegramMessage(channelKernel, "New kernel sources available! \n"
-                                                    + "Model: " + info.getModel() + " \n"
-                                                    + "PDA Version: " + info.getPDA() + " \n"
-                                                    + (info.getPatchKernel() != null ? "This is a patch over " + info.getPatchKernel() + " " : "") + "\n",
-                                                    keyboard));
-                                        } catch (RefAlreadyExistsException ignored) {
-                                            System.err.println(info.getPDA() + " is already pushed, skipping!");
-                                        } finally {
-                                            FileUtilsInternal.deleteRecursively(tmpDir);
                                         }
+
+                                        InlineKeyboardMarkup keyboard =
+                                                InlineKeyboardMarkup.builder().keyboardRow(
+                                                        new InlineKeyboardRow(InlineKeyboardButton.builder().text("View")
+                                                                .url(KERNEL_REPO_URL + "/tree/" + model + '/' + info.getPDA()).build())).build();
+                                        TelegramMessage notification = new TelegramMessage(channelKernel, "New kernel sources available! \n"
+                                                + "Model: " + info.getModel() + " \n"
+                                                + "PDA Version: " + info.getPDA() + " \n"
+                                                + (info.getPatchKernel() != null ? "This is a patch over " + info.getPatchKernel() + " " : "") + "\n",
+                                                keyboard);
+
+                                        // Pushed together with other imports, the download slot doesn't wait for it
+                                        long stamp = importStamp;
+                                        mirror.push(model, mirror.commit(tree, parent, author, message), tag).whenComplete((ignored, ex) -> {
+                                            mirror.endImport(stamp);
+                                            if (ex != null) {
+                                                ex.printStackTrace();
+                                                kernelDb.setPDA(model, oldPDA != null ? oldPDA : ""); // retry download
+                                            } else {
+                                                dispatcher.submit(kernelDb.enqueue(notification));
+                                            }
+                                        });
+                                        pushQueued = true;
                                     } else {
                                         System.err.println("ERROR: Failed to download " + info);
                                         kernelDb.setPDA(model, oldPDA != null ? oldPDA : ""); // retry download
@@ -312,14 +330,19 @@ public class SamsungFWBot implements LongPollingSingleThreadUpdateConsumer{
                                     ex.printStackTrace();
                                     kernelDb.setPDA(model, oldPDA != null ? oldPDA : ""); // retry download
                                 } finally {
-                                    if (result != null && result.exists())
+                                    if (importStamp != 0 && !pushQueued)
+                                        mirror.endImport(importStamp);
+                                    if (importer != null)
+                                        importer.close();
+                                    if (workTree != null)
+                                        workTree.close();
+                                    // An interrupted segmented download is kept to be resumed
+                                    if (result != null && result.exists() && !SegmentedDownload.isIncomplete(result))
                                         if (!result.delete()) System.err.println("Failed to delete " + result);
-                                    if (tmpDir != null && tmpDir.exists()) {
-                                        try {
-                                            FileUtilsInternal.deleteRecursively(tmpDir);
-                                        } catch (IOException e) {
-                                            e.printStackTrace();
-                                        }
+                                    // Deleting a whole kernel tree takes a while, that happens in the background
+                                    if (tmpDir != null) {
+                                        trash.discard(tmpDir);
+                                        trash.discard(new File(tmpDir.getPath() + ".index"));
                                     }
                                 }
                             });
@@ -330,58 +353,92 @@ public class SamsungFWBot implements LongPollingSingleThreadUpdateConsumer{
                 });
             }
 
-            try {
-                SetChatDescription sdesc = new SetChatDescription(channelFw, "Last updated: "
-                        + new Date(System.currentTimeMillis()));
-                sdesc.setChatId(channelFw);
-                telegramClient.execute(sdesc);
-                sdesc.setChatId(channelKernel);
-                telegramClient.execute(sdesc);
-            } catch (TelegramApiException ex) {
-                ex.printStackTrace();
+            if (now - lastHousekeeping >= HOUSEKEEPING_INTERVAL) {
+                try {
+                    SetChatDescription sdesc = new SetChatDescription(channelFw, "Last updated: "
+                            + new Date(System.currentTimeMillis()));
+                    sdesc.setChatId(channelFw);
+                    telegramClient.execute(sdesc);
+                    sdesc.setChatId(channelKernel);
+                    telegramClient.execute(sdesc);
+                } catch (TelegramApiException ex) {
+                    ex.printStackTrace();
+                }
+
+                // Writes are flushed in the background as well, this is a fixed point they're all on disk
+                db.flush();
+                kernelDb.flush();
+                db.compact();
+                kernelDb.compact();
+                lastHousekeeping = now;
             }
 
             if (!oneshot) {
                 try {
-                    Thread.sleep(60 * 60 * 1000); // 1h
+                    Thread.sleep(PollSchedule.ROUND_INTERVAL);
                 } catch (InterruptedException e) {
                     e.printStackTrace();
                 }
             }
-            int activeThreadsCount;
-            do {
-                activeThreadsCount = firmwareCheckExecutor.getActiveCount() + kernelCheckExecutor.getActiveCount()
-                        + kernelDownloadExecutor.getActiveCount();
-                System.out.println("Still active Threads: " + activeThreadsCount);
-                sleep();
-            } while (activeThreadsCount > 0);
         } while (!oneshot);
 
-        checksFinished = true;
+        int activeThreadsCount;
+        do {
+            activeThreadsCount = firmwareCheckScheduler.getPendingCount() + kernelCheckScheduler.getPendingCount()
+                    + kernelDownloadExecutor.getActiveCount() + kernelDownloadExecutor.getQueue().size();
+            System.out.println("Still active Threads: " + activeThreadsCount);
+            sleep();
+        } while (activeThreadsCount > 0);
+
+        firmwareCheckScheduler.close();
+        kernelCheckScheduler.close();
+        kernelDownloadExecutor.close();
+        mirror.close();
+        trash.close();
+        // Messages have to be sent before closing the databases, so their acks are stored
+        dispatcher.close();
+
+        db.close();
+        kernelDb.close();
         System.out.println("Checks finished");
 
-        messageExecutor.close();
-        firmwareCheckExecutor.close();
-        kernelCheckExecutor.close();
-        kernelDownloadExecutor.close();
+        if (oneshot)
+            System.exit(0);
     }
 
-    private RmCommand gitRm(Git git, RmCommand rm, File file) throws GitAPIException {
-        File baseDir = git.getRepository().getWorkTree();
+    // Regions are fetched concurrently, the newest firmware of all regions wins
+    private static SamsungFWInfo fetchLatest(String model, List<String> regions) {
+        List<Future<SamsungFWInfo>> results = new ArrayList<>();
+        SamsungFWInfo latest = null;
 
-        if (file.equals(git.getRepository().getDirectory()))
-            return rm;
+        try (ExecutorService regionExecutor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (String region : regions) {
+                results.add(regionExecutor.submit(() -> SamsungFWInfo.fetchLatest(model, region)));
+            }
+
+            for (int i = 0; i < results.size(); i++) {
+                SamsungFWInfo info;
+                try {
+                    info = results.get(i).get();
+                } catch (ExecutionException ex) {
+                    ex.printStackTrace();
+                    continue;
+                } catch (InterruptedException ex) {
+                    ex.printStackTrace();
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+
+                if (info != null) {
+                    System.out.printf("Found firmware %s/%s for model %s%n", info.getPDA(), regions.get(i), model);
 
-        if (file.isDirectory()) {
-            for (File child : file.listFiles()) {
-                gitRm(git, rm, child);
+                    if (latest == null || info.isNewerThan(latest.getPDA()))
+                        latest = info;
+                }
             }
-        } else {
-            String path = baseDir.toURI().relativize(file.toURI()).getPath();
-            rm.addFilepattern(path);
         }
 
-        return rm;
+        return latest;
     }
 
     private int getActiveThreadsCount(List<Thread> threads) {
@@ -16,63 +16,371 @@
  */
 package de.linux4.samsungfwbot;
 
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardRow;
+
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+// Reads are served from memory, writes are collected and flushed to SQLite in batches by a background writer.
+// Notifications go through an outbox in the same database, so a PDA is never stored without its message.
+public final class SamsungFWDatabase {
+
+    private static final long FLUSH_INTERVAL = 5 * 1000; // 5s
+    private static final int SCHEMA_VERSION = 4;
+    // Weight of the latest release interval in the moving average
+    private static final double CADENCE_WEIGHT = 0.3;
+
+    // Times are epoch millis, 0 if unknown
+    public record ModelState(String pda, long lastCheck, long lastChange, long changeInterval) {
+    }
 
-public class SamsungFWDatabase {
+    private record OutboxEntry(long id, TelegramMessage message) {
+    }
 
     private Connection conn = null;
+    private PreparedStatement upsertPDA = null;
+    private PreparedStatement insertOutbox = null;
+    private PreparedStatement ackOutbox = null;
+    // Models match case-insensitively like the former LIKE lookup, the Model column compares the same way
+    private final Map<String, ModelState> states = new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER);
+    private final Map<String, ModelState> dirty = new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER);
+    // Guards taking a snapshot of dirty and outbox together, see setPDA
+    private final Object pendingLock = new Object();
+    private final Queue<OutboxEntry> outbox = new ConcurrentLinkedQueue<>();
+    private final Queue<Long> acks = new ConcurrentLinkedQueue<>();
+    private final AtomicLong lastOutboxId = new AtomicLong();
+    private final List<TelegramMessage> unsent = new ArrayList<>();
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().daemon().name("pda-writer").factory());
 
     public SamsungFWDatabase(String file) {
         try {
             conn = DriverManager.getConnection("jdbc:sqlite:" + file);
 
-            conn.prepareStatement("CREATE TABLE IF NOT EXISTS pda (Model varchar(255), PDA varchar(255))").executeUpdate();
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("PRAGMA journal_mode=WAL");
+                // Every commit is fsynced, commits are batched by the writer
+                stmt.execute("PRAGMA synchronous=FULL");
+            }
+            migrate();
+
+            upsertPDA = conn.prepareStatement("INSERT INTO pda (Model, PDA, LastCheck, LastChange, ChangeInterval) "
+                    + "VALUES (?, ?, ?, ?, ?) ON CONFLICT (Model) DO UPDATE SET PDA = excluded.PDA, "
+                    + "LastCheck = excluded.LastCheck, LastChange = excluded.LastChange, ChangeInterval = excluded.ChangeInterval");
+
+            try (ResultSet rs = conn.prepareStatement("SELECT Model, PDA, LastCheck, LastChange, ChangeInterval FROM pda")
+                    .executeQuery()) {
+                while (rs.next()) {
+                    states.put(rs.getString("Model"), new ModelState(rs.getString("PDA"), rs.getLong("LastCheck"),
+                            rs.getLong("LastChange"), rs.getLong("ChangeInterval")));
+                }
+            }
+
+            insertOutbox = conn.prepareStatement("INSERT INTO outbox (Id, ChannelId, Header, Body, Keyboard, DigestKey, "
+                    + "DigestName) VALUES (?, ?, ?, ?, ?, ?, ?)");
+            ackOutbox = conn.prepareStatement("UPDATE outbox SET Sent = 1 WHERE Id = ?");
+
+            try (ResultSet rs = conn.prepareStatement("SELECT MAX(Id) FROM outbox").executeQuery()) {
+                if (rs.next())
+                    lastOutboxId.set(rs.getLong(1));
+            }
+
+            try (ResultSet rs = conn.prepareStatement("SELECT Id, ChannelId, Header, Body, Keyboard, DigestKey, DigestName "
+                    + "FROM outbox WHERE Sent = 0 ORDER BY Id").executeQuery()) {
+                while (rs.next()) {
+                    long id = rs.getLong("Id");
+                    String keyboard = rs.getString("Keyboard");
+
+                    unsent.add(new TelegramMessage(rs.getString("ChannelId"), rs.getString("Header"), rs.getString("Body"),
+                            keyboard != null ? keyboardFromJSON(new JSONArray(keyboard)) : null,
+                            rs.getString("DigestKey"), rs.getString("DigestName")).withOnSent(() -> acks.add(id)));
+                }
+            }
         } catch (SQLException ex) {
             ex.printStackTrace();
         }
+
+        // Started last, the class is final so every field is set by now
+        writer.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    private void migrate() throws SQLException {
+        int version;
+        try (ResultSet rs = conn.createStatement().executeQuery("PRAGMA user_version")) {
+            version = rs.next() ? rs.getInt(1) : 0;
+        }
+
+        if (version >= SCHEMA_VERSION)
+            return;
+
+        conn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement()) {
+            if (version < 1) {
+                // Model becomes the primary key, keep the first row of any duplicates
+                stmt.executeUpdate("CREATE TABLE IF NOT EXISTS pda (Model varchar(255), PDA varchar(255))");
+                stmt.executeUpdate("CREATE TABLE pda_new (Model varchar(255) NOT NULL, PDA varchar(255), PRIMARY KEY (Model))");
+                stmt.executeUpdate("INSERT INTO pda_new (Model, PDA) SELECT Model, PDA FROM pda "
+                        + "WHERE rowid IN (SELECT MIN(rowid) FROM pda WHERE Model IS NOT NULL GROUP BY Model)");
+                stmt.executeUpdate("DROP TABLE pda");
+                stmt.executeUpdate("ALTER TABLE pda_new RENAME TO pda");
+            }
+            if (version < 2) {
+                stmt.executeUpdate("CREATE TABLE outbox (Id INTEGER PRIMARY KEY, ChannelId TEXT NOT NULL, "
+                        + "Header TEXT NOT NULL, Body TEXT NOT NULL, Keyboard TEXT, DigestKey TEXT, DigestName TEXT, "
+                        + "Sent INTEGER NOT NULL DEFAULT 0)");
+            }
+            if (version < 3) {
+                stmt.executeUpdate("ALTER TABLE pda ADD COLUMN LastCheck INTEGER NOT NULL DEFAULT 0");
+                stmt.executeUpdate("ALTER TABLE pda ADD COLUMN LastChange INTEGER NOT NULL DEFAULT 0");
+                stmt.executeUpdate("ALTER TABLE pda ADD COLUMN ChangeInterval INTEGER NOT NULL DEFAULT 0");
+            }
+            if (version < 4) {
+                // Model compares case-insensitively, of names differing only in case the latest changed row is kept
+                stmt.executeUpdate("CREATE TABLE pda_new (Model varchar(255) NOT NULL COLLATE NOCASE, PDA varchar(255), "
+                        + "LastCheck INTEGER NOT NULL DEFAULT 0, LastChange INTEGER NOT NULL DEFAULT 0, "
+                        + "ChangeInterval INTEGER NOT NULL DEFAULT 0, PRIMARY KEY (Model))");
+                stmt.executeUpdate("INSERT INTO pda_new (Model, PDA, LastCheck, LastChange, ChangeInterval) "
+                        + "SELECT Model, PDA, LastCheck, LastChange, ChangeInterval FROM pda p WHERE rowid = "
+                        + "(SELECT rowid FROM pda q WHERE q.Model = p.Model COLLATE NOCASE "
+                        + "ORDER BY LastChange DESC, LastCheck DESC, rowid LIMIT 1)");
+                stmt.executeUpdate("DROP TABLE pda");
+                stmt.executeUpdate("ALTER TABLE pda_new RENAME TO pda");
+            }
+
+            stmt.executeUpdate("PRAGMA user_version = " + SCHEMA_VERSION);
+            conn.commit();
+        } catch (SQLException ex) {
+            conn.rollback();
+            throw ex;
+        } finally {
+            conn.setAutoCommit(true);
+        }
     }
 
     public String getPDA(String model) {
+        ModelState state = states.get(model);
+
+        return state != null && state.pda() != null ? state.pda() : "";
+    }
+
+    public ModelState getState(String model) {
+        return states.get(model);
+    }
+
+    // A changed PDA updates the release cadence, the interval between changes is averaged
+    public void setPDA(String model, String pda) {
+        long now = System.currentTimeMillis();
+
+        update(model, old -> {
+            if (old == null)
+                return new ModelState(pda, 0, now, 0);
+            if (pda.equals(old.pda()))
+                return old;
+            if (old.lastChange() == 0 || old.pda() == null || old.pda().isEmpty())
+                return new ModelState(pda, old.lastCheck(), now, old.changeInterval());
+
+            long interval = now - old.lastChange();
+            if (old.changeInterval() > 0)
+                interval = (long) (CADENCE_WEIGHT * interval + (1 - CADENCE_WEIGHT) * old.changeInterval());
+
+            return new ModelState(pda, old.lastCheck(), now, interval);
+        });
+    }
+
+    public void setChecked(String model, long time) {
+        update(model, old -> old == null ? new ModelState("", time, 0, 0)
+                : new ModelState(old.pda(), time, old.lastChange(), old.changeInterval()));
+    }
+
+    // Marks the new state dirty while holding the entry, so concurrent updates can't reorder
+    private void update(String model, UnaryOperator<ModelState> updater) {
+        states.compute(model, (key, old) -> {
+            ModelState state = updater.apply(old);
+            dirty.put(key, state);
+            return state;
+        });
+    }
+
+    // Stores the PDA and the message in the same transaction, the returned message acknowledges itself once sent
+    public TelegramMessage setPDA(String model, String pda, TelegramMessage message) {
+        synchronized (pendingLock) {
+            setPDA(model, pda);
+            return enqueue(message);
+        }
+    }
+
+    public TelegramMessage enqueue(TelegramMessage message) {
+        long id = lastOutboxId.incrementAndGet();
+        outbox.add(new OutboxEntry(id, message));
+
+        return message.withOnSent(() -> acks.add(id));
+    }
+
+    // Messages that were stored but never acknowledged, e.g. because the bot was stopped before sending them
+    public List<TelegramMessage> getUnsentMessages() {
+        return List.copyOf(unsent);
+    }
+
+    // Writes all pending changes in one transaction
+    public synchronized void flush() {
+        if (dirty.isEmpty() && outbox.isEmpty() && acks.isEmpty())
+            return;
+
+        // Acks are taken first: a message can only be acked after it was queued, so its insert is part of this snapshot
+        List<Long> pendingAcks = drain(acks);
+        Map<String, ModelState> pending;
+        List<OutboxEntry> pendingOutbox;
+        synchronized (pendingLock) {
+            pending = new HashMap<>(dirty);
+            pendingOutbox = drain(outbox);
+        }
+
         try {
-            PreparedStatement ps = conn.prepareStatement("SELECT PDA FROM pda WHERE Model LIKE ?");
-            ps.setString(1, model);
-            ResultSet rs = ps.executeQuery();
+            conn.setAutoCommit(false);
+
+            for (Map.Entry<String, ModelState> entry : pending.entrySet()) {
+                ModelState state = entry.getValue();
+                upsertPDA.setString(1, entry.getKey());
+                upsertPDA.setString(2, state.pda());
+                upsertPDA.setLong(3, state.lastCheck());
+                upsertPDA.setLong(4, state.lastChange());
+                upsertPDA.setLong(5, state.changeInterval());
+                upsertPDA.addBatch();
+            }
+            upsertPDA.executeBatch();
+
+            for (OutboxEntry entry : pendingOutbox) {
+                TelegramMessage message = entry.message();
+                insertOutbox.setLong(1, entry.id());
+                insertOutbox.setString(2, message.getChannelId());
+                insertOutbox.setString(3, message.getHeader());
+                insertOutbox.setString(4, message.getBody());
+                insertOutbox.setString(5, message.getKeyboard() != null ? keyboardToJSON(message.getKeyboard()).toString() : null);
+                insertOutbox.setString(6, message.getDigestKey());
+                insertOutbox.setString(7, message.getDigestName());
+                insertOutbox.addBatch();
+            }
+            insertOutbox.executeBatch();
 
-            if (rs.next())
-                return rs.getString("PDA");
+            for (long id : pendingAcks) {
+                ackOutbox.setLong(1, id);
+                ackOutbox.addBatch();
+            }
+            ackOutbox.executeBatch();
+
+            conn.commit();
+
+            // Keep entries that were changed again while flushing
+            pending.forEach(dirty::remove);
         } catch (SQLException ex) {
             ex.printStackTrace();
-        }
 
-        return "";
+            // Retry with the next flush
+            outbox.addAll(pendingOutbox);
+            acks.addAll(pendingAcks);
+
+            try {
+                conn.rollback();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        } finally {
+            try {
+                conn.setAutoCommit(true);
+            } catch (SQLException ex) {
+                ex.printStackTrace();
+            }
+        }
     }
 
-    private boolean checkModelExists(String model) {
-        try {
-            PreparedStatement ps = conn.prepareStatement("SELECT PDA FROM pda WHERE Model LIKE ?");
-            ps.setString(1, model);
-            ResultSet rs = ps.executeQuery();
+    // Drops acknowledged messages
+    public synchronized void compact() {
+        try (Statement stmt = conn.createStatement()) {
+            int deleted = stmt.executeUpdate("DELETE FROM outbox WHERE Sent = 1");
 
-            return rs.next();
+            if (deleted > 0)
+                System.out.println("Compacted " + deleted + " sent messages from outbox");
         } catch (SQLException ex) {
             ex.printStackTrace();
         }
-        return false;
     }
 
-    public void setPDA(String model, String pda) {
+    private static <T> List<T> drain(Queue<T> queue) {
+        List<T> items = new ArrayList<>();
+
+        for (T item = queue.poll(); item != null; item = queue.poll()) {
+            items.add(item);
+        }
+
+        return items;
+    }
+
+    private static JSONArray keyboardToJSON(InlineKeyboardMarkup keyboard) {
+        JSONArray rows = new JSONArray();
+
+        for (InlineKeyboardRow row : keyboard.getKeyboard()) {
+            JSONArray buttons = new JSONArray();
+
+            for (InlineKeyboardButton button : row) {
+                buttons.put(new JSONObject().put("text", button.getText()).put("url", button.getUrl()));
+            }
+            rows.put(buttons);
+        }
+
+        return rows;
+    }
+
+    private static InlineKeyboardMarkup keyboardFromJSON(JSONArray rows) {
+        List<InlineKeyboardRow> keyboard = new ArrayList<>();
+
+        for (int i = 0; i < rows.length(); i++) {
+            JSONArray buttons = rows.getJSONArray(i);
+            InlineKeyboardRow row = new InlineKeyboardRow();
+
+            for (int j = 0; j < buttons.length(); j++) {
+                JSONObject button = buttons.getJSONObject(j);
+                row.add(InlineKeyboardButton.builder().text(button.getString("text"))
+                        .url(button.optString("url", null)).build());
+            }
+            keyboard.add(row);
+        }
+
+        return InlineKeyboardMarkup.builder().keyboard(keyboard).build();
+    }
+
+    public void close() {
+        writer.shutdown();
+
         try {
-            PreparedStatement ps;
+            writer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ex) {
+            ex.printStackTrace();
+        }
 
-            // does not yet exist in db
-            if (!checkModelExists(model))
-                ps = conn.prepareStatement("INSERT INTO pda (PDA, Model) VALUES (?, ?)");
-            else
-                ps = conn.prepareStatement("UPDATE pda SET PDA = ? WHERE Model LIKE ?");
+        flush();
+        compact();
 
-            ps.setString(1, pda);
-            ps.setString(2, model);
-            ps.executeUpdate();
+        try {
+            // Fold the WAL back into the database file, it is committed to git as is
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("PRAGMA wal_checkpoint(TRUNCATE)");
+            }
+            conn.close();
         } catch (SQLException ex) {
             ex.printStackTrace();
         }
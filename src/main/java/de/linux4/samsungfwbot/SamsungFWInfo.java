@@ -16,19 +16,36 @@
  */
 package de.linux4.samsungfwbot;
 
-import org.jsoup.Jsoup;
+import de.linux4.samsungfwbot.net.HttpCache;
+import org.json.JSONObject;
+import org.jsoup.HttpStatusException;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
+import org.jsoup.parser.StreamParser;
 import org.jsoup.select.Elements;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.time.Duration;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Predicate;
 
 public class SamsungFWInfo {
 
     private static final String DOC_BASE_URL = "https://doc.samsungmobile.com/";
     private static final String DOC_NAME = "/doc.html";
     private static final String DOC_ENG = "/eng.html";
+    private static final int FETCH_TIMEOUT = 10 * 60 * 1000; // 10min
+    // How long the changelog key from doc.html is used without asking again, a miss asks earlier
+    private static final Duration MAGIC_MAX_AGE = Duration.ofDays(7);
+    private static final Map<String, CompletableFuture<String>> changelogs = new ConcurrentHashMap<>();
     public static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd");
 
     private final String model;
@@ -75,6 +92,19 @@ public class SamsungFWInfo {
         return securitypatch;
     }
 
+    // SimpleDateFormat is not thread safe
+    public static String formatDate(Date date) {
+        synchronized (DATE_FORMAT) {
+            return DATE_FORMAT.format(date);
+        }
+    }
+
+    public static Date parseDate(String date) throws ParseException {
+        synchronized (DATE_FORMAT) {
+            return DATE_FORMAT.parse(date);
+        }
+    }
+
     public String getDownloadURL() {
         return "https://samfw.com/firmware/" + model + "/" + region + "/" + pda;
     }
@@ -126,50 +156,195 @@ public class SamsungFWInfo {
 
     @Override
     public String toString() {
-        return "SamsungFW(" + model + ", " + region + ", " + osVersion + ", " + pda + ", " + DATE_FORMAT.format(buildDate)
-                + ", " + DATE_FORMAT.format(securitypatch) + ")";
+        return "SamsungFW(" + model + ", " + region + ", " + osVersion + ", " + pda + ", " + formatDate(buildDate)
+                + ", " + formatDate(securitypatch) + ")";
+    }
+
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("model", model);
+        json.put("region", region);
+        json.put("osVersion", osVersion);
+        json.put("pda", pda);
+        json.put("buildDate", buildDate.getTime());
+        json.put("securityPatch", securitypatch.getTime());
+        json.put("name", name);
+        json.put("changelog", changelog);
+
+        return json;
+    }
+
+    public static SamsungFWInfo fromJSON(JSONObject json, String region) {
+        return new SamsungFWInfo(json.getString("model"), region, json.getString("osVersion"), json.getString("pda"),
+                new Date(json.getLong("buildDate")), new Date(json.getLong("securityPatch")), json.getString("name"),
+                json.getString("changelog"));
     }
 
     public static SamsungFWInfo fetchLatest(String model, String region) {
         try {
-            Document doc = Jsoup.connect(DOC_BASE_URL + model + "/" + region + DOC_NAME).timeout(10 * 60 * 1000).get();
+            String docURL = DOC_BASE_URL + model + "/" + region + DOC_NAME;
+            HttpCache.Response docRes = HttpCache.getInstance().fetch(docURL, FETCH_TIMEOUT, MAGIC_MAX_AGE);
+            String magic = getMagic(docRes);
+            String changelog = null;
+
+            if (!magic.isEmpty()) {
+                try {
+                    changelog = fetchChangelog(model, magic);
+                } catch (HttpStatusException ex) {
+                    if (!docRes.isFresh())
+                        throw ex;
+                }
+            }
 
-            Element input = doc.getElementById("dflt_page");
+            // The remembered key may be outdated, ask doc.html again
+            if ((changelog == null || changelog.isEmpty()) && docRes.isFresh()) {
+                String verifiedMagic = getMagic(HttpCache.getInstance().fetch(docURL, FETCH_TIMEOUT));
 
-            if (input != null) {
-                String magic = input.val().split("/")[3];
+                if (!verifiedMagic.isEmpty() && !verifiedMagic.equals(magic))
+                    changelog = fetchChangelog(model, verifiedMagic);
+            }
+
+            return changelog == null || changelog.isEmpty() ? null : fromJSON(new JSONObject(changelog), region);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
 
-                Document changelog = Jsoup.connect(DOC_BASE_URL + model + "/" + magic + DOC_ENG).timeout(10 * 60 * 1000).get();
-                Elements changelogEntries = changelog.getElementsByClass("row");
+        return null;
+    }
 
-                if (changelogEntries.size() >= 2) {
-                    Element latestEntry = changelogEntries.get(1); // 2nd "row" item is first changelog entry
-                    Elements info = latestEntry.getElementsByClass("col-md-3");
+    // Path segment of the changelog page doc.html points to, empty if there is none
+    private static String getMagic(HttpCache.Response docRes) throws IOException {
+        if (!docRes.isModified())
+            return docRes.getValue();
 
-                    if (info.size() >= 4) {
-                        String pda = info.get(0).text().split(":")[1].strip();
-                        String osVersion = info.get(1).text().split(":")[1].strip().replaceAll("\\(Android ", " (");
-                        String releaseDate = info.get(2).text().split(":")[1].strip();
-                        String securityPatch = info.get(3).text().split(":")[1].strip();
-                        String name = "";
-                        String changelogTxt = "";
-                        Elements h1 = changelog.getElementsByTag("h1");
+        String magic;
+        try (StreamParser doc = docRes.streamParse()) {
+            Element input = doc.selectFirst("#dflt_page");
 
-                        if (h1.size() > 0)
-                            name = h1.get(0).text().split("\\(")[0].strip();
+            magic = input != null ? input.val().split("/")[3] : "";
+        }
+        HttpCache.getInstance().update(docRes, magic);
 
-                        Elements changelogText = changelog.getElementsByTag("span");
+        return magic;
+    }
 
-                        if (changelogText.size() > 1)
-                            changelogTxt = changelogText.get(1).html().replaceAll("<br>", "\n");
+    // Starts a new check cycle, changelogs fetched before are requested again
+    public static void clearChangelogs() {
+        changelogs.clear();
+    }
 
-                        return new SamsungFWInfo(model, region, osVersion, pda, DATE_FORMAT.parse(releaseDate),
-                                DATE_FORMAT.parse(securityPatch), name, changelogTxt);
-                    }
+    // Many regions share one changelog page, it's only fetched and parsed once per cycle.
+    // Returns the latest firmware as JSON without region, empty if there is none.
+    private static String fetchChangelog(String model, String magic) throws IOException {
+        String key = model + "/" + magic;
+        CompletableFuture<String> future = new CompletableFuture<>();
+        CompletableFuture<String> existing = changelogs.putIfAbsent(key, future);
+
+        if (existing != null) {
+            try {
+                return existing.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + key);
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof IOException ioEx)
+                    throw ioEx;
+                throw new IOException(ex.getCause());
+            }
+        }
+
+        try {
+            HttpCache cache = HttpCache.getInstance();
+            HttpCache.Response changelogRes = cache.fetch(DOC_BASE_URL + key + DOC_ENG, FETCH_TIMEOUT);
+            String value = changelogRes.getValue();
+
+            if (changelogRes.isModified()) {
+                SamsungFWInfo info;
+                try (StreamParser changelog = changelogRes.streamParse()) {
+                    info = parseChangelog(changelog, model);
+                } catch (ParseException ex) {
+                    throw new IOException(ex);
                 }
+                value = info != null ? info.toJSON().toString() : "";
+                cache.update(changelogRes, value);
+            }
+
+            future.complete(value);
+            return value;
+        } catch (IOException | RuntimeException ex) {
+            // Don't remember failures, the next region may try again
+            changelogs.remove(key, future);
+            future.completeExceptionally(ex);
+            throw ex;
+        }
+    }
+
+    // Position of a just closed element among the elements of its kind in document order. Elements are emitted
+    // when they close, so the ones in front of it are those emitted before it and its still open ancestors.
+    private static int documentIndex(Element element, int closedBefore, Predicate<Element> kind) {
+        int index = closedBefore;
+
+        for (Element parent = element.parent(); parent != null; parent = parent.parent()) {
+            if (kind.test(parent))
+                index++;
+        }
+
+        return index;
+    }
+
+    private static SamsungFWInfo parseChangelog(StreamParser parser, String model) throws ParseException {
+        Predicate<Element> isRow = element -> element.hasClass("row");
+        Predicate<Element> isH1 = element -> element.nameIs("h1");
+        Predicate<Element> isSpan = element -> element.nameIs("span");
+        int rows = 0, h1s = 0, spans = 0;
+        // Stops reading once the latest entry (row #2), the device name (h1 #1) and the changelog text (span #2)
+        // are complete
+        boolean entryDone = false, nameDone = false, textDone = false;
+        Iterator<Element> it = parser.iterator();
+
+        while (it.hasNext()) {
+            Element element = it.next();
+
+            if (isRow.test(element))
+                entryDone |= documentIndex(element, rows++, isRow) == 1;
+            if (isH1.test(element))
+                nameDone |= documentIndex(element, h1s++, isH1) == 0;
+            if (isSpan.test(element))
+                textDone |= documentIndex(element, spans++, isSpan) == 1;
+
+            if (entryDone && nameDone && textDone) {
+                parser.stop();
+                break;
+            }
+        }
+
+        Document changelog = parser.document();
+        Elements changelogEntries = changelog.getElementsByClass("row");
+
+        if (changelogEntries.size() >= 2) {
+            Element latestEntry = changelogEntries.get(1); // 2nd "row" item is first changelog entry
+            Elements info = latestEntry.getElementsByClass("col-md-3");
+
+            if (info.size() >= 4) {
+                String pda = info.get(0).text().split(":")[1].strip();
+                String osVersion = info.get(1).text().split(":")[1].strip().replaceAll("\\(Android ", " (");
+                String releaseDate = info.get(2).text().split(":")[1].strip();
+                String securityPatch = info.get(3).text().split(":")[1].strip();
+                String name = "";
+                String changelogTxt = "";
+                Elements h1 = changelog.getElementsByTag("h1");
+
+                if (h1.size() > 0)
+                    name = h1.get(0).text().split("\\(")[0].strip();
+
+                Elements changelogText = changelog.getElementsByTag("span");
+
+                if (changelogText.size() > 1)
+                    changelogTxt = changelogText.get(1).html().replaceAll("<br>", "\n");
+
+                return new SamsungFWInfo(model, null, osVersion, pda, parseDate(releaseDate),
+                        parseDate(securityPatch), name, changelogTxt);
             }
-        } catch (Exception ex) {
-            ex.printStackTrace();
         }
 
         return null;
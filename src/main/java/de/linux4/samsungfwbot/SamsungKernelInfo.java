@@ -16,29 +16,51 @@
  */
 package de.linux4.samsungfwbot;
 
+import de.linux4.samsungfwbot.net.HttpCache;
+import de.linux4.samsungfwbot.net.SegmentedDownload;
+import de.linux4.samsungfwbot.net.SharedHttpClient;
 import org.apache.commons.io.FileUtils;
-import org.jsoup.Connection;
+import org.json.JSONObject;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
+import org.jsoup.parser.StreamParser;
 import org.jsoup.select.Elements;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
+import java.net.HttpCookie;
 import java.net.HttpURLConnection;
-import java.net.URL;
 import java.net.URLEncoder;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
-import java.util.List;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class SamsungKernelInfo {
 
     private static final String OSS_BASE_URL = "https://opensource.samsung.com";
     private static final String OSS_SEARCH_URL = OSS_BASE_URL + "/uploadSearch?searchValue=";
+    // A model's own search page is requested at least this often, even if a sibling's page lists it
+    private static final Duration SEARCH_MAX_AGE = Duration.ofHours(24);
+    // Regional and carrier variants of a device share the model number, e.g. SM-G991B and SM-G991U1
+    private static final Pattern MODEL_FAMILY = Pattern.compile("^[A-Z]+-[A-Z]+\\d+");
+    // Latest search of each model family, every model listed on the page is in the result.
+    // Siblings use it for SEARCH_MAX_AGE, the model that made it searches again on each of its own checks.
+    private static final Map<String, Search> searches = new ConcurrentHashMap<>();
     private static final String OSS_HCAPTCHA_SITE_KEY = "f397ed2f-1dbd-450a-80fc-df93acc5a96f";
 
+    private record Search(String model, long time, CompletableFuture<Map<String, SamsungKernelInfo>> results) {
+    }
+
     private final String model;
     private final String pda;
     private final String uploadId;
@@ -110,57 +132,211 @@ public class SamsungKernelInfo {
         return "SamsungKernel(" + model + ", " + pda + ", " + uploadId + ", " + patchKernel + ")";
     }
 
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("model", model);
+        json.put("pda", pda);
+        json.put("uploadId", uploadId);
+        json.put("patchKernel", patchKernel);
+
+        return json;
+    }
+
+    public static SamsungKernelInfo fromJSON(JSONObject json) {
+        return new SamsungKernelInfo(json.getString("model"), json.getString("pda"), json.getString("uploadId"),
+                json.optString("patchKernel", null));
+    }
+
     public static SamsungKernelInfo fetchLatest(String model) {
+        Matcher family = MODEL_FAMILY.matcher(model);
+        String key = family.find() ? family.group() : model;
+        long now = System.currentTimeMillis();
+        Search own = new Search(model, now, new CompletableFuture<>());
+        Search shared = searches.compute(key, (k, old) -> old != null && !old.model().equals(model)
+                && now - old.time() < SEARCH_MAX_AGE.toMillis() ? old : own);
+
         try {
-            Document doc = Jsoup.connect(OSS_SEARCH_URL + model).timeout(10 * 60 * 1000).get();
+            // A recent search of a sibling covers the family, otherwise this model searches for all of them
+            SamsungKernelInfo sibling = null;
+            if (shared != own) {
+                try {
+                    sibling = shared.results().get().get(model);
+                } catch (ExecutionException ignored) {
+
+                }
+            }
+
+            // The sibling page only lists uploads that include the sibling, the model's own page is still
+            // asked regularly for uploads of its own. While it was confirmed recently the cached result is enough.
+            Map<String, SamsungKernelInfo> results = search(model, sibling == null);
+            if (shared == own)
+                own.results().complete(results);
+
+            SamsungKernelInfo info = results.get(model);
+            if (sibling != null && (info == null || sibling.isNewerThan(info.getPDA())))
+                info = sibling;
+
+            return info;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            failed(key, own, ex);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            failed(key, own, ex);
+        }
+
+        return null;
+    }
 
-            Elements tableRows = doc.getElementsByTag("tr");
+    // Siblings waiting for it give up, later ones search again
+    private static void failed(String key, Search search, Exception ex) {
+        searches.remove(key, search);
+        search.results().completeExceptionally(ex);
+    }
+
+    // Latest upload of every model listed on the search page, the cache keeps all of them
+    private static Map<String, SamsungKernelInfo> search(String model, boolean revalidate) throws IOException {
+        HttpCache cache = HttpCache.getInstance();
+        HttpCache.Response res = cache.fetch(OSS_SEARCH_URL + model, 10 * 60 * 1000, SEARCH_MAX_AGE, revalidate);
 
-            for (Element tableRow : tableRows) {
-                Elements tableData = tableRow.getElementsByTag("td");
+        if (!res.isModified())
+            return fromCacheValue(res.getValue());
+
+        Map<String, SamsungKernelInfo> results;
+        try (StreamParser parser = res.streamParse()) {
+            results = parseSearchResults(parser);
+        }
 
-                if (tableData.size() > 4) {
-                    List<String> models = Arrays.asList(tableData.get(1).html().strip().split("<br>"));
+        JSONObject json = new JSONObject();
+        results.forEach((rowModel, info) -> json.put(rowModel, info.toJSON()));
+        cache.update(res, json.toString());
 
-                    if (models.contains(model)) {
-                        String[] fwVersions = tableData.get(2).html().strip().split("<br>");
-                        String fwVersion = fwVersions.length > 0 ? fwVersions[fwVersions.length - 1].strip() : "";
-                        fwVersion = fwVersion.replaceAll("[^a-zA-Z0-9]", "");
+        return results;
+    }
 
-                        String uploadId = "";
-                        Element downloadTd = tableData.get(4);
+    private static Map<String, SamsungKernelInfo> fromCacheValue(String value) {
+        Map<String, SamsungKernelInfo> results = new HashMap<>();
+        if (value.isEmpty())
+            return results;
+
+        JSONObject json = new JSONObject(value);
+        // Older entries only hold the searched model
+        if (json.has("uploadId")) {
+            SamsungKernelInfo info = fromJSON(json);
+            results.put(info.getModel(), info);
+        } else {
+            for (String rowModel : json.keySet()) {
+                results.put(rowModel, fromJSON(json.getJSONObject(rowModel)));
+            }
+        }
 
-                        String[] broken = downloadTd.html().split("'");
+        return results;
+    }
 
-                        if (broken.length > 1)
-                            uploadId = broken[1].strip();
+    // Rows list every model an upload covers, the first row listing a model is its latest upload
+    private static Map<String, SamsungKernelInfo> parseSearchResults(StreamParser parser) throws IOException {
+        Map<String, SamsungKernelInfo> found = new HashMap<>();
+        Element tableRow;
 
-                        // Check if there is a patch zip file for a newer PDA version!
-                        String[] downloadFiles = tableData.get(3).html().strip().split("<br>");
-                        if (downloadFiles.length > 1) {// patch found
-                            // <model>_<android version>_Opensource_<PDA>.zip
-                            broken = downloadFiles[downloadFiles.length - 1].split("_");
-                            String patchVersion = broken[broken.length - 1].split("\\.")[0];
+        while ((tableRow = parser.selectNext("tr")) != null) {
+            Elements tableData = tableRow.getElementsByTag("td");
 
-                            return new SamsungKernelInfo(model, patchVersion, uploadId, fwVersion);
-                        }
+            if (tableData.size() > 4) {
+                for (String rowModel : tableData.get(1).html().strip().split("<br>")) {
+                    rowModel = rowModel.strip();
 
-                        return new SamsungKernelInfo(model, fwVersion, uploadId, null);
-                    }
+                    if (!rowModel.isEmpty() && !found.containsKey(rowModel))
+                        found.put(rowModel, parseSearchResult(tableData, rowModel));
                 }
             }
-        } catch (Exception ex) {
-            ex.printStackTrace();
         }
 
-        return null;
+        return found;
+    }
+
+    private static SamsungKernelInfo parseSearchResult(Elements tableData, String model) {
+        String[] fwVersions = tableData.get(2).html().strip().split("<br>");
+        String fwVersion = fwVersions.length > 0 ? fwVersions[fwVersions.length - 1].strip() : "";
+        fwVersion = fwVersion.replaceAll("[^a-zA-Z0-9]", "");
+
+        String uploadId = "";
+        Element downloadTd = tableData.get(4);
+
+        String[] broken = downloadTd.html().split("'");
+
+        if (broken.length > 1)
+            uploadId = broken[1].strip();
+
+        // Check if there is a patch zip file for a newer PDA version!
+        String[] downloadFiles = tableData.get(3).html().strip().split("<br>");
+        if (downloadFiles.length > 1) {// patch found
+            // <model>_<android version>_Opensource_<PDA>.zip
+            broken = downloadFiles[downloadFiles.length - 1].split("_");
+            String patchVersion = broken[broken.length - 1].split("\\.")[0];
+
+            return new SamsungKernelInfo(model, patchVersion, uploadId, fwVersion);
+        }
+
+        return new SamsungKernelInfo(model, fwVersion, uploadId, null);
+    }
+
+    public File getDownloadFile(File folder) {
+        return new File(folder, model + "-" + pda + ".zip");
+    }
+
+    // Partial downloads of other versions of this model would never be resumed
+    public void deleteStaleDownloads(File folder) {
+        String current = getDownloadFile(folder).getName();
+        File[] stale = folder.listFiles((dir, name) -> name.startsWith(model + "-") && name.endsWith(".zip")
+                && !name.equals(current));
+
+        if (stale != null) {
+            for (File file : stale) {
+                try {
+                    SegmentedDownload.delete(file);
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
     }
 
     public File download(CapSolver solver, File folder) throws IOException {
-        File dst = new File(folder, model + "-" + pda + ".zip");
+        File dst = getDownloadFile(folder);
+
+        HttpResponse<InputStream> res = requestDownload(solver);
+        if (res == null)
+            return null;
+
+        download(res, dst);
+
+        return dst;
+    }
 
-        Connection.Response res = Jsoup.connect(OSS_SEARCH_URL + model).timeout(10 * 60 * 1000).execute();
-        Document doc = res.parse();
+    // Resumes an earlier attempt and uses parallel segments if the server supports ranges
+    public static void download(HttpResponse<InputStream> res, File dst) throws IOException {
+        if (SegmentedDownload.supportsRanges(res)) {
+            SegmentedDownload.download(res, dst);
+        } else {
+            try (InputStream in = SharedHttpClient.body(res)) {
+                FileUtils.copyInputStreamToFile(in, dst);
+            }
+        }
+    }
+
+    // Body of the source archive download, null if the download couldn't be started. The caller has to close it.
+    public InputStream openDownload(CapSolver solver) throws IOException {
+        HttpResponse<InputStream> res = requestDownload(solver);
+
+        return res != null ? SharedHttpClient.body(res) : null;
+    }
+
+    // Response carrying the source archive, null if the download couldn't be started
+    public HttpResponse<InputStream> requestDownload(CapSolver solver) throws IOException {
+        HttpResponse<InputStream> res = SharedHttpClient.send(SharedHttpClient.newRequest(OSS_SEARCH_URL + model,
+                10 * 60 * 1000).GET().build());
+        SharedHttpClient.checkStatus(res);
+        Document doc = SharedHttpClient.parse(res);
         Elements _csrfElem = doc.getElementsByAttributeValue("name", "_csrf");
 
         StringBuilder cookie = new StringBuilder();
@@ -169,11 +345,11 @@ public class SamsungKernelInfo {
         cookie.append("; device_type=pc");
         cookie.append("; fileDownload=true");
 
-        for (String cookieKey : res.cookies().keySet()) {
+        for (HttpCookie httpCookie : SharedHttpClient.getCookies(res)) {
             if (!cookie.isEmpty())
                 cookie.append(';');
 
-            cookie.append(cookieKey).append("=").append(res.cookies().get(cookieKey));
+            cookie.append(httpCookie.getName()).append("=").append(httpCookie.getValue());
         }
 
         int retries = 0;
@@ -183,27 +359,21 @@ public class SamsungKernelInfo {
             String captcha = retries == 1 ? solver.solveCached(CapSolver.CaptchaType.HCAPTCHA, OSS_HCAPTCHA_SITE_KEY, OSS_BASE_URL)
                     : solver.solve(CapSolver.CaptchaType.HCAPTCHA, OSS_HCAPTCHA_SITE_KEY, OSS_BASE_URL);
             String query = "g-recaptcha-response=" + captcha + "&h-captcha-response=" + captcha + "&uploadId=" + uploadId;
-            byte[] queryBin = query.getBytes(StandardCharsets.UTF_8);
-            HttpURLConnection conn = (HttpURLConnection) new URL(OSS_BASE_URL + "/downSrcMPop").openConnection();
-            conn.setRequestMethod("POST");
-            conn.setDoOutput(true);
-            conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8");
-            conn.setRequestProperty("Content-Length", "" + queryBin.length);
-            conn.setRequestProperty("Cookie", cookie.toString());
-            conn.setRequestProperty("Origin", OSS_BASE_URL);
-            conn.setRequestProperty("Referer", OSS_SEARCH_URL + model);
-            conn.setRequestProperty("User-Agent", "Mozilla/5.0 (X11; Linux x86_64; rv:90.0) Gecko/20100101 Firefox/90.0");
+            HttpRequest.Builder request = SharedHttpClient.newRequest(OSS_BASE_URL + "/downSrcMPop")
+                    .POST(HttpRequest.BodyPublishers.ofString(query, StandardCharsets.UTF_8))
+                    .header("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8")
+                    .header("Cookie", cookie.toString())
+                    .header("Origin", OSS_BASE_URL)
+                    .header("Referer", OSS_SEARCH_URL + model);
             if (!_csrfElem.isEmpty()) {
-                conn.setRequestProperty("X-Csrf-Token", _csrfElem.get(0).val());
+                request.header("X-Csrf-Token", _csrfElem.get(0).val());
             }
-            conn.setRequestProperty("X-Requested-With", "XMLHttpRequest");
-            conn.connect();
+            request.header("X-Requested-With", "XMLHttpRequest");
 
-            try (OutputStream os = conn.getOutputStream()) {
-                os.write(queryBin);
+            res = SharedHttpClient.send(request.build());
+            try (InputStream in = SharedHttpClient.body(res)) {
+                doc = Jsoup.parse(in, StandardCharsets.UTF_8.name(), OSS_BASE_URL + "/downSrcMPop");
             }
-
-            doc = Jsoup.parse(conn.getInputStream(), StandardCharsets.UTF_8.name(), OSS_BASE_URL + "/downSrcMPop");
         } while (retries < 10 && doc.toString().contains("Prove that you are Human."));
         _csrfElem = doc.getElementsByAttributeValue("name", "_csrf");
         Elements checkboxes = doc.getElementsByAttributeValue("type", "checkbox");
@@ -245,30 +415,22 @@ public class SamsungKernelInfo {
                 String token = tokenElem.val();
                 String query = "_csrf=" + _csrf + "&uploadId=" + uploadId + "&attachIds=" + attachIds
                         + "&downloadPurpose=ETC&token=" + URLEncoder.encode(token, StandardCharsets.UTF_8);
-                byte[] queryBin = query.getBytes(StandardCharsets.UTF_8);
-
-                HttpURLConnection conn = (HttpURLConnection) new URL(OSS_BASE_URL + "/downSrcCode").openConnection();
-                conn.setRequestMethod("POST");
-                conn.setDoOutput(true);
-                conn.setRequestProperty("Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,image/webp,*/*;q=0.8");
-                conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8");
-                conn.setRequestProperty("Content-Length", "" + queryBin.length);
-                conn.setRequestProperty("Cookie", cookie.toString());
-                conn.setRequestProperty("Origin", OSS_BASE_URL);
-                conn.setRequestProperty("Referer", OSS_SEARCH_URL + model);
-                conn.setRequestProperty("User-Agent", "Mozilla/5.0 (X11; Linux x86_64; rv:90.0) Gecko/20100101 Firefox/90.0");
-                conn.connect();
-
-                try (OutputStream os = conn.getOutputStream()) {
-                    os.write(queryBin);
-                }
-
-                if (conn.getResponseCode() == HttpURLConnection.HTTP_OK &&
-                        "binary".equals(conn.getHeaderField("Content-Transfer-Encoding"))) {
-                    FileUtils.copyInputStreamToFile(conn.getInputStream(), dst);
 
-                    return dst;
+                HttpRequest request = SharedHttpClient.newRequest(OSS_BASE_URL + "/downSrcCode")
+                        .POST(HttpRequest.BodyPublishers.ofString(query, StandardCharsets.UTF_8))
+                        .header("Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,image/webp,*/*;q=0.8")
+                        .header("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8")
+                        .header("Cookie", cookie.toString())
+                        .header("Origin", OSS_BASE_URL)
+                        .header("Referer", OSS_SEARCH_URL + model)
+                        .build();
+                res = SharedHttpClient.send(request);
+
+                if (res.statusCode() == HttpURLConnection.HTTP_OK &&
+                        "binary".equals(res.headers().firstValue("Content-Transfer-Encoding").orElse(null))) {
+                    return res;
                 }
+                res.body().close();
             }
         }
 
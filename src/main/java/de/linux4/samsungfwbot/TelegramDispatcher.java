@@ -0,0 +1,202 @@
+/*
+  Copyright (C) 2024  Tim Zimmermann <tim@linux4.de>
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as
+  published by the Free Software Foundation, either version 3 of the
+  License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.linux4.samsungfwbot;
+
+import de.linux4.samsungfwbot.net.RateLimiter;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardRow;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+import org.telegram.telegrambots.meta.generics.TelegramClient;
+
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// One sender per chat, each with its own rate budget, sharing the bot wide budget
+public class TelegramDispatcher implements AutoCloseable {
+
+    public static final int MAX_MESSAGE_LENGTH = 4096;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final Duration RETRY_DELAY = Duration.ofSeconds(3);
+    // Telegram allows about 20 messages per minute to the same group or channel and 30 per second overall
+    private static final RateLimiter.Config CHAT_LIMIT = new RateLimiter.Config(20 / 60.0, 1 / 60.0, 20 / 60.0,
+            0.01, 3, Duration.ofSeconds(30));
+    private static final RateLimiter.Config GLOBAL_LIMIT = new RateLimiter.Config(30, 1, 30,
+            1, 30, Duration.ofSeconds(30));
+    private static final TelegramMessage END = new TelegramMessage("", "");
+
+    private static class Chat {
+        private final BlockingQueue<TelegramMessage> queue = new LinkedBlockingQueue<>();
+        // Messages taken from the queue but not sent yet, only touched by the chat's sender
+        private final Deque<TelegramMessage> backlog = new ArrayDeque<>();
+        private final RateLimiter.TokenBucket rateLimit = new RateLimiter.TokenBucket(CHAT_LIMIT);
+    }
+
+    private final TelegramClient telegramClient;
+    private final RateLimiter.TokenBucket globalRateLimit = new RateLimiter.TokenBucket(GLOBAL_LIMIT);
+    private final Map<String, Chat> chats = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    public TelegramDispatcher(TelegramClient telegramClient) {
+        this.telegramClient = telegramClient;
+    }
+
+    public void submit(TelegramMessage message) {
+        chats.computeIfAbsent(message.getChannelId(), channelId -> {
+            Chat chat = new Chat();
+            executor.submit(() -> dispatch(channelId, chat));
+            return chat;
+        }).queue.add(message);
+    }
+
+    public int getQueueSize() {
+        return chats.values().stream().mapToInt(chat -> chat.queue.size()).sum();
+    }
+
+    private void dispatch(String channelId, Chat chat) {
+        System.out.println("Message thread start for " + channelId);
+
+        try {
+            TelegramMessage message;
+            while ((message = (chat.backlog.isEmpty() ? chat.queue.take() : chat.backlog.poll())) != END) {
+                // Wait for the budget first, whatever piles up meanwhile can go out in the same digest
+                chat.rateLimit.acquire();
+                globalRateLimit.acquire();
+                chat.queue.drainTo(chat.backlog);
+
+                send(chat, coalesce(message, chat.backlog), true);
+            }
+        } catch (InterruptedException | InterruptedIOException ex) {
+            ex.printStackTrace();
+        }
+
+        System.out.println("Message thread end for " + channelId);
+    }
+
+    // Packs pending messages with the same digest key into one message, as long as it stays within the length limit
+    private static TelegramMessage coalesce(TelegramMessage first, Deque<TelegramMessage> backlog) {
+        if (first.getDigestKey() == null)
+            return first;
+
+        String header = "New firmware updates available (" + first.getDigestKey() + ") \n \n";
+        StringBuilder body = new StringBuilder(first.getBody());
+        List<InlineKeyboardRow> rows = new ArrayList<>(digestRows(first));
+        List<Runnable> onSent = new ArrayList<>(first.getOnSent());
+        int count = 1;
+
+        for (Iterator<TelegramMessage> it = backlog.iterator(); it.hasNext(); ) {
+            TelegramMessage message = it.next();
+
+            if (message == END || !first.getDigestKey().equals(message.getDigestKey()))
+                continue;
+            if (header.length() + body.length() + 1 + message.getBody().length() > MAX_MESSAGE_LENGTH)
+                continue;
+
+            body.append('\n').append(message.getBody());
+            rows.addAll(digestRows(message));
+            onSent.addAll(message.getOnSent());
+            count++;
+            it.remove();
+        }
+
+        if (count == 1)
+            return first;
+
+        return new TelegramMessage(first.getChannelId(), header, body.toString(),
+                InlineKeyboardMarkup.builder().keyboard(rows).build(), null, null, onSent);
+    }
+
+    // Buttons of a digest entry get the entry's name, otherwise they are indistinguishable
+    private static List<InlineKeyboardRow> digestRows(TelegramMessage message) {
+        List<InlineKeyboardRow> rows = new ArrayList<>();
+
+        if (message.getKeyboard() == null)
+            return rows;
+
+        for (InlineKeyboardRow row : message.getKeyboard().getKeyboard()) {
+            InlineKeyboardRow digestRow = new InlineKeyboardRow();
+
+            for (InlineKeyboardButton button : row) {
+                digestRow.add(InlineKeyboardButton.builder().text(button.getText() + " " + message.getDigestName())
+                        .url(button.getUrl()).build());
+            }
+            rows.add(digestRow);
+        }
+
+        return rows;
+    }
+
+    private void send(Chat chat, TelegramMessage message, boolean acquired) throws InterruptedException {
+        // Telegram message length limit: 4096
+        SendMessage sm = new SendMessage(message.getChannelId(),
+                message.getText().substring(0, Math.min(message.getText().length(), MAX_MESSAGE_LENGTH)));
+        sm.setChatId(message.getChannelId());
+        //sm.setParseMode("HTML");
+
+        if (message.getKeyboard() != null)
+            sm.setReplyMarkup(message.getKeyboard());
+
+        for (int i = 0; i < MAX_ATTEMPTS; i++) {
+            try {
+                if (i > 0 || !acquired) {
+                    chat.rateLimit.acquire();
+                    globalRateLimit.acquire();
+                }
+                telegramClient.execute(sm);
+                chat.rateLimit.onSuccess();
+                message.getOnSent().forEach(Runnable::run);
+                return;
+            } catch (TelegramApiRequestException e) {
+                e.printStackTrace();
+                if (e.getErrorCode() != null && e.getErrorCode() == 429) {
+                    Integer retryAfter = e.getParameters() != null ? e.getParameters().getRetryAfter() : null;
+                    chat.rateLimit.onThrottled(retryAfter != null ? Duration.ofSeconds(retryAfter) : RETRY_DELAY);
+                } else {
+                    Thread.sleep(RETRY_DELAY);
+                }
+            } catch (TelegramApiException e) {
+                e.printStackTrace();
+                Thread.sleep(RETRY_DELAY);
+            } catch (InterruptedIOException e) {
+                throw new InterruptedException(e.getMessage());
+            }
+        }
+
+        System.err.println("Giving up on message to " + message.getChannelId());
+    }
+
+    // Sends everything that is still queued, then stops
+    @Override
+    public void close() {
+        chats.values().forEach(chat -> chat.queue.add(END));
+        executor.close();
+    }
+
+}
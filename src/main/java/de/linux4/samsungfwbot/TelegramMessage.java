@@ -18,16 +18,38 @@ package de.linux4.samsungfwbot;
 
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class TelegramMessage {
 
     private final String channelId;
-    private final String text;
+    private final String header;
+    private final String body;
     private final InlineKeyboardMarkup keyboard;
+    private final String digestKey;
+    private final String digestName;
+    private final List<Runnable> onSent;
 
-    public TelegramMessage(String channelId, String text, InlineKeyboardMarkup keyboard) {
+    // Pending messages of a chat sharing the same digest key may be sent as one message, digestName labels their buttons
+    public TelegramMessage(String channelId, String header, String body, InlineKeyboardMarkup keyboard,
+                           String digestKey, String digestName, List<Runnable> onSent) {
         this.channelId = channelId;
-        this.text = text;
+        this.header = header;
+        this.body = body;
         this.keyboard = keyboard;
+        this.digestKey = digestKey;
+        this.digestName = digestName;
+        this.onSent = List.copyOf(onSent);
+    }
+
+    public TelegramMessage(String channelId, String header, String body, InlineKeyboardMarkup keyboard,
+                           String digestKey, String digestName) {
+        this(channelId, header, body, keyboard, digestKey, digestName, List.of());
+    }
+
+    public TelegramMessage(String channelId, String text, InlineKeyboardMarkup keyboard) {
+        this(channelId, "", text, keyboard, null, null);
     }
 
     public TelegramMessage(String channelId, String text) {
@@ -39,11 +61,39 @@ public class TelegramMessage {
     }
 
     public String getText() {
-        return text;
+        return header + body;
+    }
+
+    public String getHeader() {
+        return header;
+    }
+
+    public String getBody() {
+        return body;
     }
 
     public InlineKeyboardMarkup getKeyboard() {
         return keyboard;
     }
 
+    public String getDigestKey() {
+        return digestKey;
+    }
+
+    public String getDigestName() {
+        return digestName;
+    }
+
+    // Run by the dispatcher once Telegram accepted the message
+    public List<Runnable> getOnSent() {
+        return onSent;
+    }
+
+    public TelegramMessage withOnSent(Runnable callback) {
+        List<Runnable> callbacks = new ArrayList<>(onSent);
+        callbacks.add(callback);
+
+        return new TelegramMessage(channelId, header, body, keyboard, digestKey, digestName, callbacks);
+    }
+
 }
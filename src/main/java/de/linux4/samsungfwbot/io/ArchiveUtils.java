@@ -16,29 +16,36 @@
  */
 package de.linux4.samsungfwbot.io;
 
-import org.apache.commons.compress.archivers.ArchiveInputStream;
-import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.Files;
-import java.nio.file.NoSuchFileException;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
-import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 public class ArchiveUtils {
 
     public static final int MAX_FILE_SIZE = 100 * 1000 * 1000; // 100 MB
     public static final byte[] ZIP_MAGIC = new byte[]{0x50, 0x4b, 0x03, 0x04};
+    public static final String KERNEL_TAR = "Kernel.tar.gz";
+    public static final String KERNEL_DIR = "Kernel/";
 
     public static boolean isZip(File file) throws IOException {
         byte[] magic = new byte[ZIP_MAGIC.length];
@@ -62,53 +69,153 @@ public class ArchiveUtils {
         return modString.toString();
     }
 
-    public static List<String> extractTarGz(File in, File targetDir) throws IOException {
+    // Receives the content of a kernel source archive
+    public interface KernelSourceSink {
+        // The full source tree
+        void tar(TarArchiveInputStream tarIn) throws IOException;
+
+        // A single file of a patch, name is relative to the source root
+        void file(String name, InputStream in) throws IOException;
+    }
+
+    // Writes everything below a directory
+    private record DirectorySink(File targetDir, List<String> ignoredFiles) implements KernelSourceSink {
+        @Override
+        public void tar(TarArchiveInputStream tarIn) throws IOException {
+            new TarExtractor(targetDir, ignoredFiles).extract(tarIn);
+        }
+
+        @Override
+        public void file(String name, InputStream in) throws IOException {
+            extractFile(in, name, targetDir, ignoredFiles);
+        }
+    }
+
+    public static KernelSourceSink directorySink(File targetDir, List<String> ignoredFiles) {
+        return new DirectorySink(targetDir, ignoredFiles);
+    }
+
+    public static List<String> extractKernelSource(InputStream in, File targetDir, boolean patch) throws IOException {
         List<String> ignoredFiles = new ArrayList<>();
+        readKernelSource(in, new DirectorySink(targetDir, ignoredFiles), patch);
 
-        GzipCompressorInputStream gzIn = new GzipCompressorInputStream(new FileInputStream(in));
-        ArchiveInputStream tarIn = new TarArchiveInputStream(gzIn);
-        TarArchiveEntry entry;
-        while ((entry = (TarArchiveEntry) tarIn.getNextEntry()) != null) {
-            if (!tarIn.canReadEntryData(entry)) continue;
-            File output = new File(targetDir, entry.getName());
-            File parentDir = output.getParentFile();
-            if (Files.isSymbolicLink(parentDir.toPath())) {
-                // Symbolic link?
-                File target = Files.readSymbolicLink(parentDir.toPath()).toFile();
-                if (!target.toString().startsWith("/")) { // Relative path
-                    target = new File(parentDir.getParentFile(), target.toString());
-                }
-                target.mkdirs();
-            } else {
-                parentDir.mkdirs();
+        return ignoredFiles;
+    }
+
+    public static List<String> extractKernelSource(File in, File targetDir, boolean patch) throws IOException {
+        List<String> ignoredFiles = new ArrayList<>();
+        readKernelSource(in, new DirectorySink(targetDir, ignoredFiles), patch);
+
+        return ignoredFiles;
+    }
+
+    // Kernel sources come as a zip holding Kernel.tar.gz (or a Kernel/ tree for patches) or as a plain tar.gz.
+    // Both are read front to back, a zip that can't be read that way throws UnsupportedZipFeatureException.
+    public static void readKernelSource(InputStream in, KernelSourceSink sink, boolean patch) throws IOException {
+        BufferedInputStream bin = new BufferedInputStream(in);
+        bin.mark(ZIP_MAGIC.length);
+        byte[] magic = bin.readNBytes(ZIP_MAGIC.length);
+        bin.reset();
+
+        if (!Arrays.equals(magic, ZIP_MAGIC)) {
+            readTarGz(bin, sink);
+            return;
+        }
+
+        ZipArchiveInputStream zipIn = new ZipArchiveInputStream(CloseShieldInputStream.wrap(bin),
+                "UTF-8", true, true);
+        ZipArchiveEntry entry;
+        try (zipIn) {
+            while ((entry = zipIn.getNextEntry()) != null) {
+                if (!patch && entry.getName().equals(KERNEL_TAR))
+                    readTarGz(zipIn, sink);
+                else if (patch && entry.getName().startsWith(KERNEL_DIR) && !entry.isDirectory())
+                    sink.file(entry.getName().substring(KERNEL_DIR.length()), zipIn);
             }
-            if (entry.isDirectory()) {
-                if (!output.isDirectory() && !output.mkdirs()) {
-                    throw new IOException("Failed to create directory " + output);
-                }
-            } else if (entry.isSymbolicLink()) {
-                try {
-                    Files.delete(output.toPath());
-                } catch (NoSuchFileException ignored) {
-
-                } catch (DirectoryNotEmptyException ex) {
-                    System.err.println("Warning: Skipping creation of symlink " + output.toPath() + " because a non-empty directory already exists!");
-                    continue;
+        }
+    }
+
+    // Same as above for an archive on disk
+    public static void readKernelSource(File in, KernelSourceSink sink, boolean patch) throws IOException {
+        if (!isZip(in)) {
+            try (InputStream fin = new FileInputStream(in)) {
+                readTarGz(fin, sink);
+            }
+            return;
+        }
+
+        try (ZipFile zipFile = new ZipFile(in)) {
+            if (!patch) {
+                ZipEntry kernel = zipFile.getEntry(KERNEL_TAR);
+                if (kernel == null)
+                    throw new IOException(KERNEL_TAR + " not found in " + in);
+
+                try (InputStream kernelIn = zipFile.getInputStream(kernel)) {
+                    readTarGz(kernelIn, sink);
                 }
-                Files.createSymbolicLink(output.toPath(), Path.of(entry.getLinkName()));
-            } else {
-                if (entry.getSize() <= MAX_FILE_SIZE) {
-                    OutputStream out = Files.newOutputStream(output.toPath());
-                    IOUtils.copy(tarIn, out);
-                } else {
-                    ignoredFiles.add(entry.getName());
-                    continue;
+                return;
+            }
+
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+
+                if (entry.getName().startsWith(KERNEL_DIR) && !entry.isDirectory()) {
+                    try (InputStream entryIn = zipFile.getInputStream(entry)) {
+                        sink.file(entry.getName().substring(KERNEL_DIR.length()), entryIn);
+                    }
                 }
             }
-            if (!entry.isSymbolicLink())
-                Files.setPosixFilePermissions(output.toPath(), PosixFilePermissions.fromString(permsToString(entry.getMode())));
         }
+    }
+
+    // The size may be unknown up front when streaming, so the file is written next to its target first.
+    // A file turning out too large is dropped and whatever the target held (e.g. the base of a patch) stays.
+    private static void extractFile(InputStream in, String name, File targetDir, List<String> ignoredFiles)
+            throws IOException {
+        File output = new File(targetDir, name);
+        output.getParentFile().mkdirs();
+        Path tmp = new File(output.getParentFile(), "." + output.getName() + ".tmp").toPath();
+
+        try {
+            long size;
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                size = IOUtils.copyLarge(in, out, 0, MAX_FILE_SIZE + 1);
+            }
+
+            if (size > MAX_FILE_SIZE) {
+                ignoredFiles.add(name);
+                return;
+            }
+
+            // Same as writing over it, a replaced file keeps its mode
+            if (Files.isRegularFile(output.toPath(), LinkOption.NOFOLLOW_LINKS))
+                Files.setPosixFilePermissions(tmp, Files.getPosixFilePermissions(output.toPath()));
+            Files.move(tmp, output.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    public static List<String> extractTarGz(File in, File targetDir) throws IOException {
+        try (InputStream fin = new FileInputStream(in)) {
+            return extractTarGz(fin, targetDir);
+        }
+    }
+
+    // Doesn't close in
+    public static List<String> extractTarGz(InputStream in, File targetDir) throws IOException {
+        List<String> ignoredFiles = new ArrayList<>();
+        readTarGz(in, new DirectorySink(targetDir, ignoredFiles));
 
         return ignoredFiles;
     }
+
+    // Doesn't close in
+    private static void readTarGz(InputStream in, KernelSourceSink sink) throws IOException {
+        GzipCompressorInputStream gzIn = new GzipCompressorInputStream(CloseShieldInputStream.wrap(in));
+        try (TarArchiveInputStream tarIn = new TarArchiveInputStream(gzIn)) {
+            sink.tar(tarIn);
+        }
+    }
 }
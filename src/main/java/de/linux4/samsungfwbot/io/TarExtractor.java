@@ -0,0 +1,239 @@
+/*
+  Copyright (C) 2024  Tim Zimmermann <tim@linux4.de>
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as
+  published by the Free Software Foundation, either version 3 of the
+  License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.linux4.samsungfwbot.io;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.IOUtils;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Extracts a tar stream as a pipeline: the calling thread decompresses entries into pooled buffers while a pool
+// of writers creates the files. Symlinks are barriers, everything read before one is written before it's created.
+class TarExtractor {
+
+    private static final int WRITER_THREADS = 8;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int BUFFER_COUNT = 256; // at most 64 MiB in flight
+    // Larger files are written by the reading thread, they would hold too much of the pool
+    private static final long MAX_PIPELINED_SIZE = 4 * 1024 * 1024;
+    private static final Map<Integer, Set<PosixFilePermission>> PERMISSIONS = new ConcurrentHashMap<>();
+
+    private final File targetDir;
+    private final List<String> ignoredFiles;
+    private final BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<>(BUFFER_COUNT);
+    private int allocatedBuffers = 0;
+    // Directories known to exist, only used by the reading thread
+    private final Set<Path> directories = new HashSet<>();
+    private final Map<Path, CompletableFuture<Void>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicReference<IOException> failure = new AtomicReference<>();
+    private final ExecutorService writers = Executors.newFixedThreadPool(WRITER_THREADS,
+            Thread.ofPlatform().name("tar-writer-", 0).factory());
+
+    TarExtractor(File targetDir, List<String> ignoredFiles) {
+        this.targetDir = targetDir;
+        this.ignoredFiles = ignoredFiles;
+    }
+
+    void extract(TarArchiveInputStream tarIn) throws IOException {
+        try (writers) {
+            TarArchiveEntry entry;
+            while ((entry = tarIn.getNextEntry()) != null) {
+                checkFailure();
+                if (!tarIn.canReadEntryData(entry)) continue;
+
+                File output = new File(targetDir, entry.getName());
+                Path path = output.toPath();
+                createParent(output.getParentFile());
+
+                if (entry.isDirectory()) {
+                    if (!directories.contains(path)) {
+                        if (!output.isDirectory() && !output.mkdirs()) {
+                            throw new IOException("Failed to create directory " + output);
+                        }
+                        directories.add(path);
+                    }
+                    setPermissions(path, entry.getMode());
+                } else if (entry.isSymbolicLink()) {
+                    barrier();
+
+                    try {
+                        Files.delete(path);
+                    } catch (NoSuchFileException ignored) {
+
+                    } catch (DirectoryNotEmptyException ex) {
+                        System.err.println("Warning: Skipping creation of symlink " + path + " because a non-empty directory already exists!");
+                        continue;
+                    }
+                    Files.createSymbolicLink(path, Path.of(entry.getLinkName()));
+                    // Paths below it resolve through the link from now on
+                    directories.removeIf(dir -> dir.startsWith(path));
+                } else if (entry.getSize() > ArchiveUtils.MAX_FILE_SIZE) {
+                    ignoredFiles.add(entry.getName());
+                } else if (entry.getSize() > MAX_PIPELINED_SIZE) {
+                    await(path);
+
+                    try (OutputStream out = Files.newOutputStream(path)) {
+                        IOUtils.copy(tarIn, out);
+                    }
+                    setPermissions(path, entry.getMode());
+                } else {
+                    write(path, read(tarIn, entry.getSize()), entry.getSize(), entry.getMode());
+                }
+            }
+
+            barrier();
+        }
+
+        checkFailure();
+    }
+
+    // A parent that is a symlink gets its target created, like mkdirs would for a directory
+    private void createParent(File parentDir) throws IOException {
+        Path parent = parentDir.toPath();
+
+        if (directories.contains(parent))
+            return;
+
+        if (Files.isSymbolicLink(parent)) {
+            File target = Files.readSymbolicLink(parent).toFile();
+            if (!target.toString().startsWith("/")) { // Relative path
+                target = new File(parentDir.getParentFile(), target.toString());
+            }
+            target.mkdirs();
+        } else {
+            parentDir.mkdirs();
+        }
+
+        directories.add(parent);
+    }
+
+    private List<byte[]> read(TarArchiveInputStream tarIn, long size) throws IOException {
+        List<byte[]> chunks = new ArrayList<>();
+
+        try {
+            for (long remaining = size; remaining > 0; remaining -= BUFFER_SIZE) {
+                byte[] buffer = takeBuffer();
+                chunks.add(buffer);
+
+                int length = (int) Math.min(BUFFER_SIZE, remaining);
+                if (IOUtils.read(tarIn, buffer, 0, length) != length)
+                    throw new EOFException("Truncated tar entry");
+            }
+        } catch (IOException ex) {
+            buffers.addAll(chunks);
+            throw ex;
+        }
+
+        return chunks;
+    }
+
+    private byte[] takeBuffer() throws IOException {
+        byte[] buffer = buffers.poll();
+
+        if (buffer == null && allocatedBuffers < BUFFER_COUNT) {
+            allocatedBuffers++;
+            return new byte[BUFFER_SIZE];
+        }
+
+        try {
+            return buffer != null ? buffer : buffers.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while extracting to " + targetDir);
+        }
+    }
+
+    private void write(Path path, List<byte[]> chunks, long size, int mode) throws IOException {
+        // A later entry for the same path has to win
+        await(path);
+
+        CompletableFuture<Void> task = new CompletableFuture<>();
+        inFlight.put(path, task);
+
+        writers.execute(() -> {
+            try (OutputStream out = Files.newOutputStream(path)) {
+                long remaining = size;
+                for (byte[] chunk : chunks) {
+                    out.write(chunk, 0, (int) Math.min(chunk.length, remaining));
+                    remaining -= chunk.length;
+                }
+            } catch (IOException ex) {
+                failure.compareAndSet(null, ex);
+            } finally {
+                buffers.addAll(chunks);
+            }
+
+            try {
+                setPermissions(path, mode);
+            } catch (IOException ex) {
+                failure.compareAndSet(null, ex);
+            } finally {
+                inFlight.remove(path, task);
+                task.complete(null);
+            }
+        });
+    }
+
+    private void await(Path path) {
+        CompletableFuture<Void> task = inFlight.get(path);
+
+        if (task != null)
+            task.join();
+    }
+
+    private void barrier() {
+        for (CompletableFuture<Void> task : List.copyOf(inFlight.values())) {
+            task.join();
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        IOException ex = failure.get();
+
+        if (ex != null)
+            throw ex;
+    }
+
+    private static void setPermissions(Path path, int mode) throws IOException {
+        Files.setPosixFilePermissions(path, PERMISSIONS.computeIfAbsent(mode & 0777,
+                key -> PosixFilePermissions.fromString(ArchiveUtils.permsToString(key))));
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+  Copyright (C) 2024  Tim Zimmermann <tim@linux4.de>
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as
+  published by the Free Software Foundation, either version 3 of the
+  License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.linux4.samsungfwbot.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Directories are renamed into the trash and deleted in the background, so callers don't wait for large trees.
+// The trash lives next to what it collects, a rename on the same file system is atomic.
+public class Trash implements AutoCloseable {
+
+    private static final int WORKERS = 2;
+
+    private final Path dir;
+    private final AtomicLong counter = new AtomicLong();
+    private final ExecutorService executor = Executors.newFixedThreadPool(WORKERS, r -> {
+        Thread thread = new Thread(r, "trash");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    public Trash(File dir) throws IOException {
+        this.dir = Files.createDirectories(dir.toPath());
+
+        // Left over by a previous run
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(this.dir)) {
+            for (Path entry : entries) {
+                executor.execute(() -> delete(entry));
+            }
+        }
+    }
+
+    // Moves a file or directory out of the way, it's gone by the time this returns as far as the caller is concerned
+    public void discard(File file) {
+        Path source = file.toPath();
+        if (!Files.exists(source, LinkOption.NOFOLLOW_LINKS))
+            return;
+
+        Path target = dir.resolve(file.getName() + "." + System.currentTimeMillis() + "." + counter.incrementAndGet());
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            // Different file system, it has to be deleted where it is
+            System.err.println("Can't move " + file + " to the trash, deleting it in place");
+            delete(source);
+            return;
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            delete(source);
+            return;
+        }
+
+        executor.execute(() -> delete(target));
+    }
+
+    private static void delete(Path path) {
+        try {
+            FileUtilsInternal.deleteRecursively(path.toFile());
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.HOURS))
+                System.err.println("Trash in " + dir + " wasn't emptied in time");
+        } catch (InterruptedException ex) {
+            ex.printStackTrace();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
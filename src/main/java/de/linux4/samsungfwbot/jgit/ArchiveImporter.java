@@ -0,0 +1,251 @@
+/*
+  Copyright (C) 2024  Tim Zimmermann <tim@linux4.de>
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as
+  published by the Free Software Foundation, either version 3 of the
+  License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.linux4.samsungfwbot.jgit;
+
+import de.linux4.samsungfwbot.io.ArchiveUtils;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.treewalk.TreeWalk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Builds a git tree straight from the entries of a kernel source archive, nothing is written to a work tree.
+// Paths behave like files extracted to disk would: later entries win and symlinked directories are followed.
+public class ArchiveImporter implements ArchiveUtils.KernelSourceSink, AutoCloseable {
+
+    private static final int MAX_LINK_DEPTH = 8;
+    // Larger files are compressed while they are read instead of being hashed in memory first
+    private static final int MAX_BUFFERED_SIZE = 8 * 1024 * 1024; // 8MB
+
+    private final Repository repo;
+    private final ObjectInserter inserter;
+    private final ObjectReader reader;
+    private final TreeMap<String, DirCacheEntry> entries = new TreeMap<>();
+    private final Map<String, String> symlinks = new HashMap<>();
+    private final List<String> ignoredFiles = new ArrayList<>();
+
+    // baseTree is the tree a patch applies to, null to start empty
+    public ArchiveImporter(Repository repo, ObjectId baseTree) throws IOException {
+        this.repo = repo;
+        this.inserter = repo.newObjectInserter();
+        this.reader = inserter.newReader();
+
+        if (baseTree != null)
+            loadTree(baseTree);
+    }
+
+    private void loadTree(ObjectId tree) throws IOException {
+        try (ObjectReader reader = repo.newObjectReader(); TreeWalk walk = new TreeWalk(reader)) {
+            walk.addTree(tree);
+            walk.setRecursive(true);
+
+            while (walk.next()) {
+                DirCacheEntry entry = new DirCacheEntry(walk.getPathString());
+                entry.setFileMode(walk.getFileMode(0));
+                entry.setObjectId(walk.getObjectId(0));
+                entries.put(entry.getPathString(), entry);
+
+                if (walk.getFileMode(0) == FileMode.SYMLINK)
+                    symlinks.put(entry.getPathString(), new String(reader.open(walk.getObjectId(0)).getBytes(),
+                            StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    @Override
+    public void tar(TarArchiveInputStream tarIn) throws IOException {
+        TarArchiveEntry entry;
+        while ((entry = tarIn.getNextEntry()) != null) {
+            if (!tarIn.canReadEntryData(entry) || entry.isDirectory()) continue;
+
+            if (entry.isSymbolicLink()) {
+                addSymlink(entry.getName(), entry.getLinkName());
+            } else if (entry.getSize() > ArchiveUtils.MAX_FILE_SIZE) {
+                ignoredFiles.add(entry.getName());
+            } else {
+                FileMode mode = (entry.getMode() & 0100) != 0 ? FileMode.EXECUTABLE_FILE : FileMode.REGULAR_FILE;
+                add(entry.getName(), mode, entry.getSize() > MAX_BUFFERED_SIZE
+                        ? inserter.insert(Constants.OBJ_BLOB, entry.getSize(), tarIn)
+                        : insert(tarIn.readNBytes((int) entry.getSize())));
+            }
+        }
+    }
+
+    // Files of a patch keep the mode of the file they replace
+    @Override
+    public void file(String name, InputStream in) throws IOException {
+        byte[] data = in.readNBytes(ArchiveUtils.MAX_FILE_SIZE + 1);
+
+        if (data.length > ArchiveUtils.MAX_FILE_SIZE) {
+            ignoredFiles.add(name);
+            return;
+        }
+
+        String path = resolve(name);
+        DirCacheEntry existing = path != null ? entries.get(path) : null;
+        FileMode mode = existing != null && existing.getFileMode() == FileMode.EXECUTABLE_FILE
+                ? FileMode.EXECUTABLE_FILE : FileMode.REGULAR_FILE;
+
+        add(name, mode, insert(data));
+    }
+
+    private void addSymlink(String name, String target) throws IOException {
+        String path = resolve(name);
+
+        // Same as on disk, a symlink can't replace a non-empty directory
+        if (path != null && !entries.subMap(path + "/", path + "0").isEmpty()) {
+            System.err.println("Warning: Skipping creation of symlink " + path + " because a non-empty directory already exists!");
+            return;
+        }
+
+        if (add(name, FileMode.SYMLINK, insert(target.getBytes(StandardCharsets.UTF_8))))
+            symlinks.put(path, target);
+    }
+
+    // Hashed first, blobs any branch in the repository already has are neither compressed nor written again
+    private ObjectId insert(byte[] data) throws IOException {
+        ObjectId id = inserter.idFor(Constants.OBJ_BLOB, data);
+
+        if (!reader.has(id))
+            inserter.insert(Constants.OBJ_BLOB, data);
+
+        return id;
+    }
+
+    // A file replaces whatever was at or below its path, and files in the way of its parent directories
+    private boolean add(String name, FileMode mode, ObjectId id) {
+        String path = resolve(name);
+
+        if (path == null) {
+            System.err.println("Warning: Skipping " + name + ", it points outside of the source tree");
+            return false;
+        }
+
+        DirCacheEntry entry;
+        try {
+            entry = new DirCacheEntry(path);
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Warning: Skipping " + name + ": " + ex.getMessage());
+            return false;
+        }
+        entry.setFileMode(mode);
+        entry.setObjectId(id);
+
+        entries.subMap(path + "/", path + "0").clear();
+        for (int i = path.indexOf('/'); i >= 0; i = path.indexOf('/', i + 1)) {
+            String parent = path.substring(0, i);
+            entries.remove(parent);
+            symlinks.remove(parent);
+        }
+        symlinks.remove(path);
+        entries.put(path, entry);
+
+        return true;
+    }
+
+    // Normalized path with symlinked parent directories followed, null if it leaves the tree
+    private String resolve(String name) {
+        String path = normalize(name);
+
+        for (int depth = 0; path != null && depth < MAX_LINK_DEPTH; depth++) {
+            String resolved = null;
+
+            for (int i = path.indexOf('/'); i >= 0 && resolved == null; i = path.indexOf('/', i + 1)) {
+                String target = symlinks.get(path.substring(0, i));
+
+                if (target != null) {
+                    // Absolute links point outside of the tree
+                    if (target.startsWith("/"))
+                        return null;
+
+                    int parentEnd = path.lastIndexOf('/', i - 1);
+                    resolved = normalize((parentEnd >= 0 ? path.substring(0, parentEnd + 1) : "") + target
+                            + path.substring(i));
+                }
+            }
+
+            if (resolved == null)
+                return path;
+            path = resolved;
+        }
+
+        return null;
+    }
+
+    private static String normalize(String name) {
+        Deque<String> parts = new ArrayDeque<>();
+
+        for (String part : name.split("/")) {
+            if (part.isEmpty() || part.equals("."))
+                continue;
+
+            if (part.equals("..")) {
+                if (parts.isEmpty())
+                    return null;
+                parts.removeLast();
+            } else {
+                parts.addLast(part);
+            }
+        }
+
+        return parts.isEmpty() ? null : String.join("/", parts);
+    }
+
+    public List<String> getIgnoredFiles() {
+        return ignoredFiles;
+    }
+
+    public ObjectId writeTree() throws IOException {
+        DirCache dirCache = DirCache.newInCore();
+        DirCacheBuilder builder = dirCache.builder();
+
+        for (DirCacheEntry entry : entries.values()) {
+            builder.add(entry);
+        }
+        builder.finish();
+
+        ObjectId tree = dirCache.writeTree(inserter);
+        inserter.flush();
+
+        return tree;
+    }
+
+    @Override
+    public void close() {
+        reader.close();
+        inserter.close();
+    }
+
+}
@@ -0,0 +1,465 @@
+/*
+  Copyright (C) 2024  Tim Zimmermann <tim@linux4.de>
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as
+  published by the Free Software Foundation, either version 3 of the
+  License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.linux4.samsungfwbot.jgit;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheCheckout;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TagBuilder;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.FetchConnection;
+import org.eclipse.jgit.transport.FetchResult;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Long-lived bare clone of the kernel repository that all imports share. Branches are fetched with depth 1,
+// so an import only transfers the objects of the latest commit it doesn't have yet.
+// Nothing but fetched refs is stored locally, branches and tags are only created on the remote by push.
+// Pushes are collected for a short while and sent together, so one negotiation and pack covers all of them.
+public class KernelMirror implements AutoCloseable {
+
+    private static final long GC_INTERVAL = 6 * 60 * 60 * 1000; // 6h
+    private static final String GC_MARKER = "samsungfwbot-gc";
+    private static final long PUSH_WINDOW = 30 * 1000; // 30s
+    // Commits of a branch fetched to find out whether an older tag is on it
+    private static final int HISTORY_DEPTH = 32;
+    // Regional and carrier variants of a device share the model number, e.g. SM-G991B and SM-G991U1
+    private static final Pattern MODEL_FAMILY = Pattern.compile("^[A-Z]+-[A-Z]+\\d+");
+
+    private final Repository repo;
+    private final CredentialsProvider credentials;
+    private final ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "kernel-mirror-gc");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    private final ScheduledExecutorService pushScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "kernel-mirror-push");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Model families whose branches were fetched already, guarded by this
+    private final Set<String> fetchedFamilies = new HashSet<>();
+    // Read by every running import, gc needs it exclusively. Stamps aren't bound to a thread, so an import can end
+    // on the push thread.
+    private final StampedLock imports = new StampedLock();
+    // Guarded by itself, a push is scheduled whenever the first import is added
+    private final List<PendingPush> pending = new ArrayList<>();
+
+    private record PendingPush(String model, ObjectId commit, String tag, ObjectId tagId, CompletableFuture<Void> result) {
+    }
+
+    public KernelMirror(File dir, String url, CredentialsProvider credentials) throws IOException {
+        this.credentials = credentials;
+
+        if (!new File(dir, Constants.CONFIG).isFile()) {
+            try (Git git = Git.init().setBare(true).setDirectory(dir).call()) {
+                git.remoteAdd().setName(Constants.DEFAULT_REMOTE_NAME).setUri(new URIish(url)).call();
+            } catch (GitAPIException | URISyntaxException ex) {
+                throw new IOException("Failed to create kernel mirror in " + dir, ex);
+            }
+        }
+
+        this.repo = new FileRepositoryBuilder().setGitDir(dir).setBare().build();
+        maintenance.scheduleWithFixedDelay(this::gc, GC_INTERVAL, GC_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    public Repository getRepository() {
+        return repo;
+    }
+
+    // Work tree with its own index on top of the mirror, its HEAD is shared and must not be used
+    public Repository openWorkTree(File workTree) throws IOException {
+        return new FileRepositoryBuilder().setGitDir(repo.getDirectory()).setWorkTree(workTree)
+                .setIndexFile(new File(workTree.getAbsolutePath() + ".index")).build();
+    }
+
+    // Checks out a tree into an empty work tree opened by openWorkTree
+    public static void checkout(Repository workTree, ObjectId tree) throws IOException {
+        DirCache dirCache = workTree.lockDirCache();
+        try {
+            new DirCacheCheckout(workTree, dirCache, tree).checkout();
+        } finally {
+            dirCache.unlock();
+        }
+    }
+
+    // Latest commit of the model's branch, null if the remote doesn't have one.
+    // The first fetch of a model family brings the sibling branches along, their objects are shared with
+    // the imports and don't have to be pushed again. Later fetches only ask for the model's own branch.
+    public ObjectId fetch(String model) throws GitAPIException, IOException {
+        String branch = Constants.R_HEADS + model;
+        String tracking = Constants.R_REMOTES + Constants.DEFAULT_REMOTE_NAME + "/" + model;
+        Matcher family = MODEL_FAMILY.matcher(model);
+        String familyPattern = family.find() ? family.group() + "*" : null;
+
+        // The shallow file and packed-refs are shared by all branches
+        synchronized (this) {
+            // An import waiting to be pushed is what the next one builds on
+            ObjectId queued = getQueuedCommit(model);
+            RefSpec refSpec;
+            boolean familyFetch = familyPattern != null && fetchedFamilies.add(familyPattern);
+
+            if (familyFetch) {
+                refSpec = new RefSpec("+" + Constants.R_HEADS + familyPattern + ":" + Constants.R_REMOTES
+                        + Constants.DEFAULT_REMOTE_NAME + "/" + familyPattern);
+            } else if (familyPattern != null && repo.exactRef(tracking) == null) {
+                // The family fetch saw no branch of this model and none was pushed since
+                return queued;
+            } else {
+                refSpec = new RefSpec("+" + branch + ":" + tracking);
+            }
+
+            try (Git git = new Git(repo)) {
+                FetchResult result = git.fetch().setRemote(Constants.DEFAULT_REMOTE_NAME)
+                        .setRefSpecs(refSpec).setDepth(1).call();
+                Ref ref = result.getAdvertisedRef(branch);
+
+                return queued != null ? queued : ref != null ? ref.getObjectId() : null;
+            } catch (GitAPIException | RuntimeException ex) {
+                if (familyFetch)
+                    fetchedFamilies.remove(familyPattern);
+                throw ex;
+            }
+        }
+    }
+
+    private ObjectId getQueuedCommit(String model) {
+        synchronized (pending) {
+            for (int i = pending.size() - 1; i >= 0; i--) {
+                if (pending.get(i).model().equals(model))
+                    return pending.get(i).commit();
+            }
+        }
+
+        return null;
+    }
+
+    // Tags are only followed by fetch (of branch tips) or stored after their push, so a local tag is one that made it.
+    // A tag on the remote only counts if its commit is on the model's branch: older pushes weren't atomic and may
+    // have created the tag while the branch update was rejected. Call fetch first, so the branch tip is known.
+    public boolean hasTag(String model, String tag) throws IOException {
+        synchronized (pending) {
+            for (PendingPush push : pending) {
+                if (push.tag().equals(tag))
+                    return true;
+            }
+        }
+
+        if (repo.exactRef(Constants.R_TAGS + tag) != null)
+            return true;
+
+        Ref remoteTag, remoteBranch;
+        try (Transport transport = Transport.open(repo, Constants.DEFAULT_REMOTE_NAME)) {
+            transport.setCredentialsProvider(credentials);
+
+            try (FetchConnection connection = transport.openFetch(List.of(new RefSpec(Constants.R_TAGS + tag),
+                    new RefSpec(Constants.R_HEADS + model)))) {
+                remoteTag = connection.getRef(Constants.R_TAGS + tag);
+                remoteBranch = connection.getRef(Constants.R_HEADS + model);
+            }
+        } catch (URISyntaxException ex) {
+            throw new IOException(ex);
+        }
+
+        if (remoteTag == null)
+            return false;
+
+        ObjectId tagged = remoteTag.getPeeledObjectId() != null ? remoteTag.getPeeledObjectId() : remoteTag.getObjectId();
+        if (remoteBranch != null && (tagged.equals(remoteBranch.getObjectId())
+                || isAncestor(tagged, remoteBranch.getObjectId())))
+            return true;
+
+        // An older import isn't part of the shallow history, fetch some more of it. Importing it again on top
+        // of the branch would bring back an old version.
+        if (remoteBranch != null && !repo.getObjectDatabase().has(tagged)) {
+            synchronized (this) {
+                try (Git git = new Git(repo)) {
+                    git.fetch().setRemote(Constants.DEFAULT_REMOTE_NAME).setCredentialsProvider(credentials)
+                            .setRefSpecs(new RefSpec("+" + Constants.R_HEADS + model + ":" + Constants.R_REMOTES
+                                    + Constants.DEFAULT_REMOTE_NAME + "/" + model)).setDepth(HISTORY_DEPTH).call();
+                } catch (GitAPIException ex) {
+                    throw new IOException("Failed to fetch the history of " + model, ex);
+                }
+            }
+
+            if (isAncestor(tagged, remoteBranch.getObjectId()))
+                return true;
+        }
+
+        System.err.println("Tag " + tag + " isn't on branch " + model + ", importing it again");
+        return false;
+    }
+
+    // Only what the mirror has locally is walked, false if that doesn't prove it
+    private boolean isAncestor(ObjectId commit, ObjectId tip) throws IOException {
+        if (!repo.getObjectDatabase().has(commit) || !repo.getObjectDatabase().has(tip))
+            return false;
+
+        try (RevWalk walk = new RevWalk(repo)) {
+            return walk.isMergedInto(walk.parseCommit(commit), walk.parseCommit(tip));
+        } catch (MissingObjectException ex) {
+            return false;
+        }
+    }
+
+    // An import may skip objects it finds present, e.g. in the pack of a sibling's old tip. Until its push is done,
+    // nothing refers to them from the import, so gc doesn't run between beginImport and endImport.
+    public long beginImport() {
+        return imports.readLock();
+    }
+
+    public void endImport(long stamp) {
+        imports.unlockRead(stamp);
+    }
+
+    public ObjectId getTree(ObjectId commit) throws IOException {
+        try (RevWalk walk = new RevWalk(repo)) {
+            return walk.parseCommit(commit).getTree();
+        }
+    }
+
+    public ObjectId commit(ObjectId tree, ObjectId parent, PersonIdent author, String message) throws IOException {
+        CommitBuilder commit = new CommitBuilder();
+        commit.setTreeId(tree);
+        if (parent != null)
+            commit.setParentId(parent);
+        commit.setAuthor(author);
+        commit.setCommitter(new PersonIdent(repo));
+        commit.setMessage(message);
+
+        try (ObjectInserter inserter = repo.newObjectInserter()) {
+            ObjectId id = inserter.insert(commit);
+            inserter.flush();
+            return id;
+        }
+    }
+
+    // Queues the commit as the model's branch along with an annotated tag, completes once the remote accepted both
+    public CompletableFuture<Void> push(String model, ObjectId commit, String tag) throws IOException {
+        TagBuilder tagBuilder = new TagBuilder();
+        tagBuilder.setObjectId(commit, Constants.OBJ_COMMIT);
+        tagBuilder.setTag(tag);
+        tagBuilder.setTagger(new PersonIdent(repo));
+
+        ObjectId tagId;
+        try (ObjectInserter inserter = repo.newObjectInserter()) {
+            tagId = inserter.insert(tagBuilder);
+            inserter.flush();
+        }
+
+        PendingPush push = new PendingPush(model, commit, tag, tagId, new CompletableFuture<>());
+        synchronized (pending) {
+            if (pending.isEmpty())
+                pushScheduler.schedule(this::pushPending, PUSH_WINDOW, TimeUnit.MILLISECONDS);
+            pending.add(push);
+        }
+
+        return push.result();
+    }
+
+    // Branches are pushed first and tags only for the branches the remote accepted, so a tag on the remote means
+    // its import is on the branch. Tags are forced, one left behind by an earlier failed push is replaced.
+    private void pushPending() {
+        List<PendingPush> pushes;
+        synchronized (pending) {
+            pushes = new ArrayList<>(pending);
+        }
+        if (pushes.isEmpty())
+            return;
+
+        // Later imports of a model build on earlier ones, so its last commit is all the branch needs
+        Map<String, ObjectId> branches = new LinkedHashMap<>();
+        for (PendingPush push : pushes) {
+            branches.put(push.model(), push.commit());
+        }
+
+        Map<String, RemoteRefUpdate> updates = new HashMap<>();
+        Map<PendingPush, IOException> failures = new HashMap<>();
+        synchronized (this) {
+            List<RefSpec> branchSpecs = new ArrayList<>();
+            branches.forEach((model, commit) -> branchSpecs.add(new RefSpec(commit.name() + ":" + Constants.R_HEADS + model)));
+            Exception failure = push(branchSpecs, updates);
+
+            List<RefSpec> tagSpecs = new ArrayList<>();
+            for (PendingPush push : pushes) {
+                try {
+                    if (failure != null)
+                        throw new IOException("Failed to push " + push.tag(), failure);
+
+                    checkUpdate(updates.get(Constants.R_HEADS + push.model()));
+                    tagSpecs.add(new RefSpec("+" + push.tagId().name() + ":" + Constants.R_TAGS + push.tag()));
+                } catch (IOException ex) {
+                    failures.put(push, ex);
+                }
+            }
+
+            if (!tagSpecs.isEmpty()) {
+                failure = push(tagSpecs, updates);
+                if (failure != null) {
+                    for (PendingPush push : pushes) {
+                        failures.putIfAbsent(push, new IOException("Failed to push " + push.tag(), failure));
+                    }
+                }
+            }
+        }
+        System.out.println("Pushed " + pushes.size() + " kernel imports of " + branches.size() + " models");
+
+        synchronized (pending) {
+            pending.removeAll(pushes);
+            // Queued while this push was running
+            if (!pending.isEmpty())
+                pushScheduler.schedule(this::pushPending, PUSH_WINDOW, TimeUnit.MILLISECONDS);
+        }
+
+        for (PendingPush push : pushes) {
+            try {
+                if (failures.containsKey(push))
+                    throw failures.get(push);
+
+                checkUpdate(updates.get(Constants.R_TAGS + push.tag()));
+
+                // The remote has it now, later imports see the tag without fetching it first
+                storeRef(Constants.R_TAGS + push.tag(), push.tagId());
+                storeRef(Constants.R_REMOTES + Constants.DEFAULT_REMOTE_NAME + "/" + push.model(),
+                        branches.get(push.model()));
+                push.result().complete(null);
+            } catch (IOException ex) {
+                push.result().completeExceptionally(ex);
+            }
+        }
+    }
+
+    // Collects the result of every ref by its remote name, returns what made the whole push fail
+    private Exception push(List<RefSpec> refSpecs, Map<String, RemoteRefUpdate> updates) {
+        try (Git git = new Git(repo)) {
+            Iterable<PushResult> results = git.push().setRemote(Constants.DEFAULT_REMOTE_NAME)
+                    .setCredentialsProvider(credentials).setThin(true).setRefSpecs(refSpecs).call();
+
+            for (PushResult result : results) {
+                for (RemoteRefUpdate update : result.getRemoteUpdates()) {
+                    updates.put(update.getRemoteName(), update);
+                }
+            }
+            return null;
+        } catch (Exception ex) {
+            return ex;
+        }
+    }
+
+    private static void checkUpdate(RemoteRefUpdate update) throws IOException {
+        if (update == null)
+            throw new IOException("Remote didn't report a result");
+
+        if (update.getStatus() != RemoteRefUpdate.Status.OK && update.getStatus() != RemoteRefUpdate.Status.UP_TO_DATE)
+            throw new IOException("Failed to push " + update.getRemoteName() + ": " + update.getStatus()
+                    + (update.getMessage() != null ? " (" + update.getMessage() + ")" : ""));
+    }
+
+    private void storeRef(String name, ObjectId id) throws IOException {
+        RefUpdate update = repo.updateRef(name);
+        update.setNewObjectId(id);
+        update.setForceUpdate(true);
+        RefUpdate.Result result = update.update();
+
+        if (result == RefUpdate.Result.LOCK_FAILURE || result == RefUpdate.Result.IO_FAILURE
+                || result == RefUpdate.Result.REJECTED)
+            throw new IOException("Failed to update " + name + ": " + result);
+    }
+
+    // Repacks what the fetches left as loose objects and small packs, old tips are pruned once nothing refers to them
+    // Skipped while imports are running, the marker stays old so the next attempt (or close) catches up
+    private void gc() {
+        long stamp = imports.tryWriteLock();
+        if (stamp == 0) {
+            System.out.println("Kernel imports are running, postponing gc of the kernel mirror");
+            return;
+        }
+
+        try {
+            synchronized (this) {
+                try (Git git = new Git(repo)) {
+                    git.gc().call();
+                    // Remembered across runs, oneshot runs end long before the next scheduled gc
+                    File marker = new File(repo.getDirectory(), GC_MARKER);
+                    if (!marker.createNewFile() && !marker.setLastModified(System.currentTimeMillis()))
+                        System.err.println("Failed to update " + marker);
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+        } finally {
+            imports.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void close() {
+        // Whatever is still queued goes out right away
+        pushScheduler.execute(this::pushPending);
+        pushScheduler.shutdown();
+        try {
+            if (!pushScheduler.awaitTermination(1, TimeUnit.HOURS))
+                System.err.println("Kernel pushes didn't finish in time");
+        } catch (InterruptedException ex) {
+            ex.printStackTrace();
+            Thread.currentThread().interrupt();
+        }
+
+        maintenance.shutdownNow();
+        if (System.currentTimeMillis() - new File(repo.getDirectory(), GC_MARKER).lastModified() >= GC_INTERVAL)
+            gc();
+        synchronized (this) {
+            repo.close();
+        }
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+  Copyright (C) 2024  Tim Zimmermann <tim@linux4.de>
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as
+  published by the Free Software Foundation, either version 3 of the
+  License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.linux4.samsungfwbot.jgit;
+
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.dircache.DirCacheIterator;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.treewalk.FileTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serial;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+// Same as git add . with a ForceAddFileTreeIterator, but files are hashed and compressed on the common fork-join pool.
+// The tree is walked on the calling thread and the index is built in walk order, so the result doesn't depend on timing.
+public class ParallelAdd {
+
+    private static final int BATCH_SIZE = 64;
+    // Larger files are compressed while they are read instead of being hashed in memory first
+    private static final int MAX_BUFFERED_SIZE = 8 * 1024 * 1024; // 8MB
+
+    private record PendingFile(File file, DirCacheEntry entry) {
+    }
+
+    public static void add(Repository repo) throws IOException {
+        DirCache dirCache = repo.lockDirCache();
+
+        try {
+            List<DirCacheEntry> entries = new ArrayList<>();
+            List<PendingFile> pending = new ArrayList<>();
+
+            try (TreeWalk walk = new TreeWalk(repo)) {
+                walk.addTree(new ForceAddFileTreeIterator(repo));
+                walk.addTree(new DirCacheIterator(dirCache));
+                walk.setRecursive(true);
+
+                while (walk.next()) {
+                    FileTreeIterator file = walk.getTree(0, FileTreeIterator.class);
+                    DirCacheIterator indexed = walk.getTree(1, DirCacheIterator.class);
+                    DirCacheEntry existing = indexed != null ? indexed.getDirCacheEntry() : null;
+
+                    // Like add without update, files missing from the work tree stay in the index
+                    if (file == null) {
+                        if (existing != null)
+                            entries.add(existing);
+                        continue;
+                    }
+
+                    if (existing != null && !file.isModified(existing, true, walk.getObjectReader())) {
+                        entries.add(existing);
+                        continue;
+                    }
+
+                    DirCacheEntry entry = new DirCacheEntry(walk.getRawPath());
+                    entry.setFileMode(file.getEntryFileMode());
+                    entry.setLength(file.getEntryLength());
+                    entry.setLastModified(file.getEntryLastModifiedInstant());
+                    entries.add(entry);
+
+                    if (entry.getFileMode() == FileMode.GITLINK) {
+                        entry.setObjectId(file.getEntryObjectId());
+                    } else {
+                        pending.add(new PendingFile(file.getEntryFile(), entry));
+                    }
+                }
+            }
+
+            try {
+                new InsertTask(repo, pending, 0, pending.size()).invoke();
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
+            }
+
+            DirCacheBuilder builder = dirCache.builder();
+            for (DirCacheEntry entry : entries) {
+                builder.add(entry);
+            }
+            builder.commit();
+        } finally {
+            dirCache.unlock();
+        }
+    }
+
+    // Inserters aren't thread safe, every batch has its own
+    private static class InsertTask extends RecursiveAction {
+
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        // Tasks are never serialized
+        private final transient Repository repo;
+        private final transient List<PendingFile> files;
+        private final int from, to;
+
+        private InsertTask(Repository repo, List<PendingFile> files, int from, int to) {
+            this.repo = repo;
+            this.files = files;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > BATCH_SIZE) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new InsertTask(repo, files, from, middle), new InsertTask(repo, files, middle, to));
+                return;
+            }
+
+            try (ObjectInserter inserter = repo.newObjectInserter(); ObjectReader reader = inserter.newReader()) {
+                for (int i = from; i < to; i++) {
+                    PendingFile pending = files.get(i);
+                    pending.entry().setObjectId(insert(inserter, reader, pending));
+                }
+                inserter.flush();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        private ObjectId insert(ObjectInserter inserter, ObjectReader reader, PendingFile pending) throws IOException {
+            byte[] data;
+
+            if (pending.entry().getFileMode() == FileMode.SYMLINK) {
+                data = Files.readSymbolicLink(pending.file().toPath()).toString().getBytes(StandardCharsets.UTF_8);
+            } else if (pending.file().length() > MAX_BUFFERED_SIZE) {
+                try (InputStream in = Files.newInputStream(pending.file().toPath())) {
+                    return inserter.insert(Constants.OBJ_BLOB, pending.file().length(), in);
+                }
+            } else {
+                data = Files.readAllBytes(pending.file().toPath());
+            }
+
+            // Hashed first, blobs the repository already has are neither compressed nor written again
+            ObjectId id = inserter.idFor(Constants.OBJ_BLOB, data);
+            if (!reader.has(id))
+                inserter.insert(Constants.OBJ_BLOB, data);
+
+            return id;
+        }
+
+    }
+
+}
@@ -0,0 +1,66 @@
+/*
+  Copyright (C) 2024  Tim Zimmermann <tim@linux4.de>
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as
+  published by the Free Software Foundation, either version 3 of the
+  License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.linux4.samsungfwbot.net;
+
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Caps the number of in-flight requests per target host
+public class HostConcurrencyLimiter {
+
+    private static final int DEFAULT_LIMIT = 16;
+    private static final Map<String, Integer> LIMITS = Map.of(
+            "doc.samsungmobile.com", 64,
+            "opensource.samsung.com", 16,
+            "api.capsolver.com", 4
+    );
+
+    public static class Permit implements AutoCloseable {
+        private final Semaphore semaphore;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Permit(Semaphore semaphore) {
+            this.semaphore = semaphore;
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true))
+                semaphore.release();
+        }
+    }
+
+    private final Map<String, Semaphore> semaphores = new ConcurrentHashMap<>();
+
+    public Permit acquire(String host) throws InterruptedIOException {
+        Semaphore semaphore = semaphores.computeIfAbsent(host,
+                key -> new Semaphore(LIMITS.getOrDefault(key, DEFAULT_LIMIT), true));
+
+        try {
+            semaphore.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + host);
+        }
+
+        return new Permit(semaphore);
+    }
+
+}
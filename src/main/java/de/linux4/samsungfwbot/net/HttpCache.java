@@ -0,0 +1,297 @@
+/*
+  Copyright (C) 2024  Tim Zimmermann <tim@linux4.de>
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as
+  published by the Free Software Foundation, either version 3 of the
+  License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.linux4.samsungfwbot.net;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.parser.Parser;
+import org.jsoup.parser.StreamParser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Conditional GET cache: remembers validators together with the value the caller derived from a page.
+// Pages without validators are parsed again every time, an unchanged result counts as confirmed but isn't written again.
+// Callers may also accept a value the server confirmed recently without asking again.
+public class HttpCache {
+
+    private static final String file = "db/httpcache.db";
+    private static final int SCHEMA_VERSION = 1;
+    private static HttpCache instance = null;
+    // How much of a body is searched for a <meta> charset
+    private static final int CHARSET_PREFIX = 5 * 1024;
+
+    // verified: when the server last confirmed the value, epoch millis
+    private record Entry(String etag, String lastModified, String value, long verified) {
+    }
+
+    public static class Response {
+        private final String url;
+        private final HttpResponse<InputStream> response;
+        private final String etag;
+        private final String lastModified;
+        private final String value;
+        private final boolean fresh;
+        // Fetched with a maxAge, confirmations are recorded
+        private final boolean tracked;
+
+        private Response(String url, HttpResponse<InputStream> response, String etag, String lastModified,
+                         String value, boolean fresh, boolean tracked) {
+            this.url = url;
+            this.response = response;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.value = value;
+            this.fresh = fresh;
+            this.tracked = tracked;
+        }
+
+        public String getURL() {
+            return url;
+        }
+
+        // false if the page is unchanged since the last update(), getValue() then holds the previous result.
+        // Always true for pages without validators.
+        public boolean isModified() {
+            return response != null;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        // true if the value was served from the cache without asking the server
+        public boolean isFresh() {
+            return fresh;
+        }
+
+        public String getCharset() {
+            return SharedHttpClient.getCharset(response);
+        }
+
+        public InputStream openBody() throws IOException {
+            return SharedHttpClient.body(response);
+        }
+
+        // Elements are emitted as soon as they are closed, so callers can stop reading once they saw what they need
+        public StreamParser streamParse() throws IOException {
+            BufferedInputStream in = new BufferedInputStream(openBody(), CHARSET_PREFIX);
+
+            try {
+                Reader reader = new BufferedReader(new InputStreamReader(in, detectCharset(in, getCharset())));
+
+                return new StreamParser(Parser.htmlParser()).parse(reader, url);
+            } catch (IOException | RuntimeException ex) {
+                in.close();
+                throw ex;
+            }
+        }
+    }
+
+    // Without a usable charset in the header the document decides, like Jsoup.parse does: a BOM or a <meta> charset
+    // within the first bytes, UTF-8 otherwise
+    private static Charset detectCharset(BufferedInputStream in, String declared) throws IOException {
+        Charset charset = forName(declared);
+        if (charset != null)
+            return charset;
+
+        in.mark(CHARSET_PREFIX);
+        byte[] prefix = in.readNBytes(CHARSET_PREFIX);
+        in.reset();
+
+        if (prefix.length >= 3 && (prefix[0] & 0xFF) == 0xEF && (prefix[1] & 0xFF) == 0xBB && (prefix[2] & 0xFF) == 0xBF) {
+            in.skipNBytes(3);
+            return StandardCharsets.UTF_8;
+        }
+        if (prefix.length >= 2 && ((prefix[0] & 0xFF) == 0xFE && (prefix[1] & 0xFF) == 0xFF
+                || (prefix[0] & 0xFF) == 0xFF && (prefix[1] & 0xFF) == 0xFE))
+            return StandardCharsets.UTF_16;
+
+        Document head = Jsoup.parse(new String(prefix, StandardCharsets.ISO_8859_1));
+        for (Element meta : head.select("meta[http-equiv=content-type], meta[charset]")) {
+            charset = forName(meta.hasAttr("charset") ? meta.attr("charset")
+                    : SharedHttpClient.getCharset(meta.attr("content")));
+            if (charset != null)
+                return charset;
+        }
+
+        return StandardCharsets.UTF_8;
+    }
+
+    private static Charset forName(String charset) {
+        if (charset == null || charset.isBlank())
+            return null;
+
+        try {
+            return Charset.forName(charset.strip());
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    public static synchronized HttpCache getInstance() {
+        if (instance == null)
+            instance = new HttpCache(file);
+
+        return instance;
+    }
+
+    private Connection conn = null;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public HttpCache(String file) {
+        try {
+            conn = DriverManager.getConnection("jdbc:sqlite:" + file);
+
+            conn.prepareStatement("CREATE TABLE IF NOT EXISTS cache (URL varchar(255), ETag varchar(255), LastModified varchar(255), Hash varchar(64), Value TEXT, PRIMARY KEY (URL))").executeUpdate();
+            migrate();
+
+            try (ResultSet rs = conn.prepareStatement("SELECT * FROM cache").executeQuery()) {
+                while (rs.next()) {
+                    entries.put(rs.getString("URL"), new Entry(rs.getString("ETag"), rs.getString("LastModified"),
+                            rs.getString("Value"), rs.getLong("Verified")));
+                }
+            }
+        } catch (SQLException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private void migrate() throws SQLException {
+        int version;
+        try (ResultSet rs = conn.createStatement().executeQuery("PRAGMA user_version")) {
+            version = rs.next() ? rs.getInt(1) : 0;
+        }
+
+        if (version >= SCHEMA_VERSION)
+            return;
+
+        try (Statement stmt = conn.createStatement()) {
+            switch (version) {
+                case 0:
+                    stmt.executeUpdate("ALTER TABLE cache ADD COLUMN Verified INTEGER NOT NULL DEFAULT 0");
+            }
+
+            stmt.executeUpdate("PRAGMA user_version = " + SCHEMA_VERSION);
+        }
+    }
+
+    public Response fetch(String url, int timeout) throws IOException {
+        return fetch(url, timeout, Duration.ZERO);
+    }
+
+    // A value the server confirmed within maxAge is returned without a request
+    public Response fetch(String url, int timeout, Duration maxAge) throws IOException {
+        return fetch(url, timeout, maxAge, false);
+    }
+
+    // revalidate always asks the server, but still records the confirmation for later calls with maxAge
+    public Response fetch(String url, int timeout, Duration maxAge, boolean revalidate) throws IOException {
+        Entry entry = entries.get(url);
+        long now = System.currentTimeMillis();
+
+        if (!revalidate && entry != null && entry.value != null && now - entry.verified < maxAge.toMillis())
+            return new Response(url, null, entry.etag, entry.lastModified, entry.value, true, true);
+
+        HttpRequest.Builder request = SharedHttpClient.newRequest(url, timeout).GET();
+
+        if (entry != null && entry.value != null) {
+            if (entry.etag != null)
+                request.header("If-None-Match", entry.etag);
+            if (entry.lastModified != null)
+                request.header("If-Modified-Since", entry.lastModified);
+        }
+
+        HttpResponse<InputStream> response = SharedHttpClient.send(request.build());
+
+        if (response.statusCode() == HttpURLConnection.HTTP_NOT_MODIFIED && entry != null && entry.value != null) {
+            response.body().close();
+            if (maxAge.isPositive())
+                verified(url, entry, now);
+
+            return new Response(url, null, entry.etag, entry.lastModified, entry.value, false, maxAge.isPositive());
+        }
+
+        SharedHttpClient.checkStatus(response);
+
+        // Without validators the caller parses the page again, it may stop reading as early as it likes
+        return new Response(url, response, response.headers().firstValue("ETag").orElse(null),
+                response.headers().firstValue("Last-Modified").orElse(null), null, false, maxAge.isPositive());
+    }
+
+    // Only tracked for callers that use maxAge, everything else would write on every unchanged page
+    private void verified(String url, Entry entry, long time) {
+        entries.put(url, new Entry(entry.etag, entry.lastModified, entry.value, time));
+
+        synchronized (this) {
+            try (PreparedStatement ps = conn.prepareStatement("UPDATE cache SET Verified = ? WHERE URL = ?")) {
+                ps.setLong(1, time);
+                ps.setString(2, url);
+                ps.executeUpdate();
+            } catch (SQLException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    // Remember the value derived from a modified response, only call this once the response was processed successfully
+    public void update(Response response, String value) {
+        long now = System.currentTimeMillis();
+        Entry old = entries.get(response.url);
+
+        // Same result as before, e.g. from a page without validators, this only confirms it
+        if (old != null && Objects.equals(old.value, value) && Objects.equals(old.etag, response.etag)
+                && Objects.equals(old.lastModified, response.lastModified)) {
+            if (response.tracked)
+                verified(response.url, old, now);
+            return;
+        }
+
+        Entry entry = new Entry(response.etag, response.lastModified, value, now);
+        entries.put(response.url, entry);
+
+        synchronized (this) {
+            try {
+                PreparedStatement ps = conn.prepareStatement("INSERT OR REPLACE INTO cache (URL, ETag, LastModified, Value, Verified) VALUES (?, ?, ?, ?, ?)");
+                ps.setString(1, response.url);
+                ps.setString(2, entry.etag);
+                ps.setString(3, entry.lastModified);
+                ps.setString(4, entry.value);
+                ps.setLong(5, entry.verified);
+                ps.executeUpdate();
+            } catch (SQLException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+}
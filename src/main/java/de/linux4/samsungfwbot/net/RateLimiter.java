@@ -0,0 +1,151 @@
+/*
+  Copyright (C) 2024  Tim Zimmermann <tim@linux4.de>
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as
+  published by the Free Software Foundation, either version 3 of the
+  License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.linux4.samsungfwbot.net;
+
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Token bucket per host with AIMD: the rate grows additively while a host is healthy and is cut on throttling
+public class RateLimiter {
+
+    public record Config(double initialRate, double minRate, double maxRate, double increase, double burst,
+                         Duration slowResponse) {
+    }
+
+    private static final Config DEFAULT_CONFIG = new Config(10, 0.5, 50, 0.5, 5, Duration.ofSeconds(15));
+    private static final Map<String, Config> CONFIGS = Map.of(
+            "doc.samsungmobile.com", new Config(20, 1, 100, 1, 20, Duration.ofSeconds(15)),
+            "opensource.samsung.com", new Config(5, 0.5, 20, 0.25, 5, Duration.ofSeconds(30)),
+            "api.capsolver.com", new Config(5, 1, 20, 0.5, 5, Duration.ofSeconds(30)),
+            "www.gsmarena.com", new Config(1 / 3.0, 0.1, 2, 0.02, 1, Duration.ofSeconds(10)),
+            "samfw.com", new Config(1 / 3.0, 0.1, 2, 0.02, 1, Duration.ofSeconds(10))
+    );
+    private static final double DECREASE_THROTTLED = 0.5;
+    private static final double DECREASE_SLOW = 0.75;
+
+    public static class TokenBucket {
+        private final Config config;
+        private double rate;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+        private long blockedUntil = lastRefill;
+
+        public TokenBucket(Config config) {
+            this.config = config;
+            this.rate = config.initialRate;
+            this.tokens = 1;
+        }
+
+        // Takes a token, returns the time in ns the caller has to wait before it may use it
+        private synchronized long reserve() {
+            long now = System.nanoTime();
+            tokens = Math.min(config.burst, tokens + (now - lastRefill) / 1e9 * rate);
+            lastRefill = now;
+            tokens--;
+
+            long wait = tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+            return Math.max(wait, blockedUntil - now);
+        }
+
+        public void acquire() throws InterruptedIOException {
+            long wait = reserve();
+
+            if (wait > 0) {
+                try {
+                    Thread.sleep(Duration.ofNanos(wait));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for rate limit");
+                }
+            }
+        }
+
+        public synchronized void onSuccess() {
+            rate = Math.min(config.maxRate, rate + config.increase);
+        }
+
+        public synchronized void onSlow() {
+            rate = Math.max(config.minRate, rate * DECREASE_SLOW);
+        }
+
+        public synchronized void onThrottled(Duration retryAfter) {
+            rate = Math.max(config.minRate, rate * DECREASE_THROTTLED);
+            tokens = Math.min(tokens, 0);
+
+            if (retryAfter != null)
+                blockedUntil = Math.max(blockedUntil, System.nanoTime() + retryAfter.toNanos());
+        }
+
+        public synchronized double getRate() {
+            return rate;
+        }
+    }
+
+    private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    public TokenBucket getBucket(String host) {
+        return buckets.computeIfAbsent(host, key -> new TokenBucket(CONFIGS.getOrDefault(key, DEFAULT_CONFIG)));
+    }
+
+    public void acquire(String host) throws InterruptedIOException {
+        getBucket(host).acquire();
+    }
+
+    public void onResponse(String host, int status, Duration latency, String retryAfter) {
+        TokenBucket bucket = getBucket(host);
+
+        if (isThrottled(status)) {
+            Duration delay = parseRetryAfter(retryAfter);
+            System.err.println("Throttled by " + host + " (HTTP " + status + "), retry after " + delay);
+            bucket.onThrottled(delay);
+        } else if (latency.compareTo(CONFIGS.getOrDefault(host, DEFAULT_CONFIG).slowResponse) > 0) {
+            bucket.onSlow();
+        } else if (status < 500) {
+            bucket.onSuccess();
+        }
+    }
+
+    public static boolean isThrottled(int status) {
+        return status == 429 || status == 503;
+    }
+
+    // Retry-After is either a number of seconds or a HTTP date
+    public static Duration parseRetryAfter(String retryAfter) {
+        if (retryAfter == null || retryAfter.isBlank())
+            return null;
+
+        try {
+            return Duration.ofSeconds(Math.max(0, Long.parseLong(retryAfter.strip())));
+        } catch (NumberFormatException ignored) {
+        }
+
+        try {
+            Duration delay = Duration.between(ZonedDateTime.now(),
+                    ZonedDateTime.parse(retryAfter.strip(), DateTimeFormatter.RFC_1123_DATE_TIME));
+            return delay.isNegative() ? Duration.ZERO : delay;
+        } catch (DateTimeParseException ignored) {
+        }
+
+        return null;
+    }
+
+}
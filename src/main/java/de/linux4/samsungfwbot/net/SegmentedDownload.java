@@ -0,0 +1,333 @@
+/*
+  Copyright (C) 2024  Tim Zimmermann <tim@linux4.de>
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as
+  published by the Free Software Foundation, either version 3 of the
+  License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.linux4.samsungfwbot.net;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Downloads a file with several Range requests in parallel, each writing its part of the file in place.
+// Progress is kept next to the file in <file>.progress, so an interrupted download resumes where it stopped.
+public class SegmentedDownload {
+
+    private static final int MAX_SEGMENTS = 4;
+    private static final long MIN_SEGMENT_SIZE = 8 * 1024 * 1024; // 8 MiB
+    // Written data is synced and recorded in the progress file every this many bytes per segment
+    private static final long CHECKPOINT_INTERVAL = 16 * 1024 * 1024; // 16 MiB
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static class Segment {
+        private final long start;
+        private final long end;
+        private volatile long position;
+
+        private Segment(long start, long end, long position) {
+            this.start = start;
+            this.end = end;
+            this.position = position;
+        }
+    }
+
+    private final HttpRequest request;
+    private final File file;
+    private final File progressFile;
+    private final long length;
+    private final String validator;
+    private final List<Segment> segments = new ArrayList<>();
+    private volatile boolean rangesRefused = false;
+
+    public static boolean supportsRanges(HttpResponse<?> response) {
+        HttpHeaders headers = response.headers();
+
+        return response.statusCode() == HttpURLConnection.HTTP_OK
+                && headers.firstValue("Accept-Ranges").map(value -> value.equalsIgnoreCase("bytes")).orElse(false)
+                && headers.firstValueAsLong("Content-Length").orElse(-1) > 0
+                && headers.firstValue("Content-Encoding").isEmpty();
+    }
+
+    public static boolean isIncomplete(File file) {
+        return new File(file.getPath() + ".progress").isFile();
+    }
+
+    // Removes a download along with its progress, e.g. once it will never be resumed
+    public static void delete(File file) throws IOException {
+        Files.deleteIfExists(file.toPath());
+        Files.deleteIfExists(new File(file.getPath() + ".progress").toPath());
+        Files.deleteIfExists(new File(file.getPath() + ".progress.tmp").toPath());
+    }
+
+    // Downloads the body of response to file, the response has to support ranges.
+    // The request of the response is repeated with a Range header for the other segments.
+    public static void download(HttpResponse<InputStream> response, File file) throws IOException {
+        new SegmentedDownload(response, file).run(response);
+    }
+
+    private SegmentedDownload(HttpResponse<InputStream> response, File file) throws IOException {
+        this.request = response.request();
+        this.file = file;
+        this.progressFile = new File(file.getPath() + ".progress");
+        this.length = response.headers().firstValueAsLong("Content-Length").orElseThrow();
+        this.validator = response.headers().firstValue("ETag")
+                .orElse(response.headers().firstValue("Last-Modified").orElse(null));
+
+        if (!loadProgress()) {
+            Files.deleteIfExists(file.toPath());
+            int count = Math.clamp(length / MIN_SEGMENT_SIZE, 1, MAX_SEGMENTS);
+
+            for (int i = 0; i < count; i++) {
+                long start = length * i / count;
+                segments.add(new Segment(start, length * (i + 1) / count, start));
+            }
+        }
+    }
+
+    private void run(HttpResponse<InputStream> response) throws IOException {
+        InputStream initial = SharedHttpClient.body(response);
+        Segment first = segments.getFirst();
+        // The response already delivers the start of the file
+        boolean fromInitial = first.start == 0 && first.position == 0;
+
+        // The request may not be repeatable (e.g. a one-time download token), so every other segment is requested
+        // before anything is written. If one isn't answered with its range, the response is read front to back instead.
+        Map<Segment, InputStream> ranges = new HashMap<>();
+        try {
+            for (Segment segment : segments) {
+                if (segment.position >= segment.end || segment == first && fromInitial)
+                    continue;
+
+                InputStream in = openRange(segment);
+                if (in == null) {
+                    closeAll(ranges.values());
+                    stream(initial);
+                    return;
+                }
+                ranges.put(segment, in);
+            }
+        } catch (IOException | RuntimeException ex) {
+            closeAll(ranges.values());
+            initial.close();
+            throw ex;
+        }
+
+        if (fromInitial) {
+            System.out.println("Downloading " + file + " (" + length + " bytes) in " + segments.size() + " segments");
+            ranges.put(first, initial);
+        } else {
+            initial.close();
+        }
+
+        IOException failure = null;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<?>> results = new ArrayList<>();
+
+            for (Segment segment : segments) {
+                InputStream in = ranges.get(segment);
+                results.add(executor.submit(() -> {
+                    fetch(channel, segment, in);
+                    return null;
+                }));
+            }
+
+            for (Future<?> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException ex) {
+                    if (failure == null)
+                        failure = ex.getCause() instanceof IOException ioEx ? ioEx : new IOException(ex.getCause());
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while downloading " + file, ex);
+                }
+            }
+        }
+
+        if (failure != null) {
+            // Resuming would only run into the same refusal, the next attempt starts over
+            if (rangesRefused)
+                delete(file);
+            throw failure;
+        }
+
+        Files.deleteIfExists(progressFile.toPath());
+    }
+
+    // Fallback for servers that don't honour ranges after all, no progress is kept
+    private void stream(InputStream initial) throws IOException {
+        System.err.println("Range requests for " + file + " aren't honoured, downloading it sequentially");
+        Files.deleteIfExists(progressFile.toPath());
+
+        try (InputStream in = initial) {
+            Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void closeAll(Collection<InputStream> streams) {
+        for (InputStream in : streams) {
+            try {
+                in.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private void fetch(FileChannel channel, Segment segment, InputStream initial) throws IOException {
+        IOException failure = null;
+
+        try {
+            for (int attempt = 0; attempt < MAX_ATTEMPTS && segment.position < segment.end; attempt++) {
+                try (InputStream in = attempt == 0 && initial != null ? initial : openRange(segment)) {
+                    // Retrying won't help once the server refuses ranges
+                    if (in == null) {
+                        rangesRefused = true;
+                        failure = new IOException("Range requests for " + file + " aren't honoured anymore");
+                        break;
+                    }
+
+                    transfer(channel, segment, in);
+                } catch (IOException ex) {
+                    System.err.println("Segment " + segment.start + "-" + segment.end + " of " + file + " failed at "
+                            + segment.position + ": " + ex.getMessage());
+                    failure = ex;
+                }
+            }
+        } finally {
+            checkpoint(channel);
+        }
+
+        if (segment.position < segment.end)
+            throw failure != null ? failure : new IOException("Incomplete segment of " + file);
+    }
+
+    // null if the server answered with anything but the requested range
+    private InputStream openRange(Segment segment) throws IOException {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(request, (name, value) -> true)
+                .setHeader("Range", "bytes=" + segment.position + "-" + (segment.end - 1))
+                .setHeader("Accept-Encoding", "identity");
+
+        // Answered with the whole file if it changed in the meantime
+        if (validator != null)
+            builder.setHeader("If-Range", validator);
+
+        HttpResponse<InputStream> response = SharedHttpClient.send(builder.build());
+
+        if (response.statusCode() != HttpURLConnection.HTTP_PARTIAL) {
+            response.body().close();
+            System.err.println("Range request for " + file + " answered with HTTP " + response.statusCode());
+            return null;
+        }
+
+        return response.body();
+    }
+
+    private void transfer(FileChannel channel, Segment segment, InputStream in) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long checkpoint = segment.position;
+        int read;
+
+        while (segment.position < segment.end
+                && (read = in.read(buffer, 0, (int) Math.min(buffer.length, segment.end - segment.position))) != -1) {
+            ByteBuffer data = ByteBuffer.wrap(buffer, 0, read);
+            long position = segment.position;
+
+            while (data.hasRemaining()) {
+                position += channel.write(data, position);
+            }
+            segment.position = position;
+
+            if (position - checkpoint >= CHECKPOINT_INTERVAL) {
+                checkpoint(channel);
+                checkpoint = position;
+            }
+        }
+    }
+
+    // Data has to be on disk before the progress file claims it
+    private synchronized void checkpoint(FileChannel channel) throws IOException {
+        channel.force(false);
+
+        JSONArray parts = new JSONArray();
+        for (Segment segment : segments) {
+            parts.put(new JSONObject().put("start", segment.start).put("end", segment.end)
+                    .put("position", segment.position));
+        }
+
+        JSONObject progress = new JSONObject().put("length", length).put("segments", parts);
+        if (validator != null)
+            progress.put("validator", validator);
+
+        File tmp = new File(progressFile.getPath() + ".tmp");
+        Files.writeString(tmp.toPath(), progress.toString(), StandardCharsets.UTF_8);
+        Files.move(tmp.toPath(), progressFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Only resumes a download of the same file, by length and validator
+    private boolean loadProgress() {
+        if (!progressFile.isFile() || !file.isFile())
+            return false;
+
+        try {
+            JSONObject progress = new JSONObject(Files.readString(progressFile.toPath(), StandardCharsets.UTF_8));
+
+            if (progress.getLong("length") != length || !String.valueOf(validator).equals(
+                    String.valueOf(progress.optString("validator", null))))
+                return false;
+
+            JSONArray parts = progress.getJSONArray("segments");
+            long done = 0;
+            for (int i = 0; i < parts.length(); i++) {
+                JSONObject part = parts.getJSONObject(i);
+                Segment segment = new Segment(part.getLong("start"), part.getLong("end"), part.getLong("position"));
+                segments.add(segment);
+                done += segment.position - segment.start;
+            }
+
+            System.out.println("Resuming download of " + file + ", " + done + " of " + length + " bytes done");
+            return !segments.isEmpty();
+        } catch (IOException | RuntimeException ex) {
+            ex.printStackTrace();
+            segments.clear();
+            return false;
+        }
+    }
+
+}
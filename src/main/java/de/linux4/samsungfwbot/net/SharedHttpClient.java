@@ -0,0 +1,245 @@
+/*
+  Copyright (C) 2024  Tim Zimmermann <tim@linux4.de>
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as
+  published by the Free Software Foundation, either version 3 of the
+  License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.linux4.samsungfwbot.net;
+
+import org.jsoup.HttpStatusException;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+
+import javax.net.ssl.SSLSession;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.Security;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+// One HTTP/2 capable client for all outbound requests, so connections (and TLS sessions) are pooled per host
+public class SharedHttpClient {
+
+    public static final String USER_AGENT = "Mozilla/5.0 (X11; Linux x86_64; rv:90.0) Gecko/20100101 Firefox/90.0";
+    private static final Duration CONNECT_TIMEOUT = Duration.ofMinutes(1);
+
+    private static final HttpClient client;
+    private static final int MAX_THROTTLED_ATTEMPTS = 3;
+    // Error pages are read into memory, so their permit is returned even if the caller only looks at the status
+    private static final int MAX_ERROR_BODY = 1024 * 1024; // 1MB
+    private static final HostConcurrencyLimiter limiter = new HostConcurrencyLimiter();
+    private static final RateLimiter rateLimiter = new RateLimiter();
+
+    static {
+        // Keep idle connections and resolved addresses around between two checks of the same host
+        if (System.getProperty("jdk.httpclient.keepalive.timeout") == null)
+            System.setProperty("jdk.httpclient.keepalive.timeout", "300");
+        if (Security.getProperty("networkaddress.cache.ttl") == null)
+            Security.setProperty("networkaddress.cache.ttl", "300");
+
+        client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(CONNECT_TIMEOUT)
+                .build();
+    }
+
+    public static HttpClient getClient() {
+        return client;
+    }
+
+    public static HttpRequest.Builder newRequest(String url) {
+        return HttpRequest.newBuilder(URI.create(url))
+                .header("User-Agent", USER_AGENT)
+                .header("Accept-Encoding", "gzip, deflate");
+    }
+
+    public static HttpRequest.Builder newRequest(String url, int timeout) {
+        return newRequest(url).timeout(Duration.ofMillis(timeout));
+    }
+
+    // The host's concurrency permit is held until the body of a successful response is closed (or its read timed out),
+    // other responses come with their body already read
+    public static HttpResponse<InputStream> send(HttpRequest request) throws IOException {
+        String host = request.uri().getHost();
+        int attempts = request.method().equals("GET") ? MAX_THROTTLED_ATTEMPTS : 1;
+
+        for (int attempt = 1; ; attempt++) {
+            // Waiting for a token doesn't hold a permit, a backed off host would otherwise block all of them
+            rateLimiter.acquire(host);
+            HostConcurrencyLimiter.Permit permit = limiter.acquire(host);
+            HttpResponse<InputStream> response;
+
+            try {
+                long start = System.nanoTime();
+                // The request timeout also limits how long a read of the body waits for data
+                response = client.send(request, responseInfo ->
+                        new TimedBodySubscriber(request.timeout().orElse(null), permit::close));
+                rateLimiter.onResponse(host, response.statusCode(), Duration.ofNanos(System.nanoTime() - start),
+                        response.headers().firstValue("Retry-After").orElse(null));
+            } catch (InterruptedException ex) {
+                permit.close();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while requesting " + request.uri());
+            } catch (IOException | RuntimeException ex) {
+                permit.close();
+                throw ex;
+            }
+
+            if (!RateLimiter.isThrottled(response.statusCode()) || attempt >= attempts)
+                return response.statusCode() >= 200 && response.statusCode() < 300 ? response : buffered(response);
+
+            // The rate limiter now holds back this host, try again once it lets us
+            response.body().close();
+        }
+    }
+
+    private static HttpResponse<InputStream> buffered(HttpResponse<InputStream> response) throws IOException {
+        byte[] body;
+        try (InputStream in = response.body()) {
+            body = in.readNBytes(MAX_ERROR_BODY);
+        }
+
+        return new HttpResponse<>() {
+            @Override
+            public int statusCode() {
+                return response.statusCode();
+            }
+
+            @Override
+            public HttpRequest request() {
+                return response.request();
+            }
+
+            @Override
+            public Optional<HttpResponse<InputStream>> previousResponse() {
+                return response.previousResponse();
+            }
+
+            @Override
+            public HttpHeaders headers() {
+                return response.headers();
+            }
+
+            @Override
+            public InputStream body() {
+                return new ByteArrayInputStream(body);
+            }
+
+            @Override
+            public Optional<SSLSession> sslSession() {
+                return response.sslSession();
+            }
+
+            @Override
+            public URI uri() {
+                return response.uri();
+            }
+
+            @Override
+            public HttpClient.Version version() {
+                return response.version();
+            }
+        };
+    }
+
+    public static RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    // Response body with any transfer compression removed
+    public static InputStream body(HttpResponse<InputStream> response) throws IOException {
+        String encoding = response.headers().firstValue("Content-Encoding").orElse("").strip();
+
+        try {
+            if (encoding.equalsIgnoreCase("gzip"))
+                return new GZIPInputStream(response.body());
+            if (encoding.equalsIgnoreCase("deflate"))
+                return new InflaterInputStream(response.body());
+        } catch (IOException ex) {
+            response.body().close();
+            throw ex;
+        }
+
+        return response.body();
+    }
+
+    public static String bodyAsString(HttpResponse<InputStream> response) throws IOException {
+        try (InputStream in = body(response)) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    public static void checkStatus(HttpResponse<InputStream> response) throws IOException {
+        if (response.statusCode() < 200 || response.statusCode() >= 300) {
+            response.body().close();
+            throw new HttpStatusException("HTTP error fetching URL", response.statusCode(), response.uri().toString());
+        }
+    }
+
+    public static String getCharset(HttpResponse<?> response) {
+        return getCharset(response.headers().firstValue("Content-Type").orElse(""));
+    }
+
+    public static String getCharset(String contentType) {
+        for (String param : contentType.split(";")) {
+            param = param.strip();
+            if (param.toLowerCase().startsWith("charset="))
+                return param.substring("charset=".length()).replace("\"", "").strip();
+        }
+
+        return null;
+    }
+
+    public static Document parse(HttpResponse<InputStream> response) throws IOException {
+        try (InputStream in = body(response)) {
+            return Jsoup.parse(in, getCharset(response), response.uri().toString());
+        }
+    }
+
+    public static Document get(String url, int timeout) throws IOException {
+        HttpResponse<InputStream> response = send(newRequest(url, timeout).GET().build());
+        checkStatus(response);
+
+        return parse(response);
+    }
+
+    // Cookies of the final response only, unlike Jsoup ones set by redirects in between aren't kept.
+    // There's no shared CookieHandler on purpose, concurrent downloads each need a session of their own.
+    public static List<HttpCookie> getCookies(HttpResponse<?> response) {
+        List<HttpCookie> cookies = new ArrayList<>();
+
+        for (String header : response.headers().allValues("Set-Cookie")) {
+            try {
+                cookies.addAll(HttpCookie.parse(header));
+            } catch (IllegalArgumentException ignored) {
+            }
+        }
+
+        return cookies;
+    }
+
+}
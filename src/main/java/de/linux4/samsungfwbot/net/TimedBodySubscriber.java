@@ -0,0 +1,175 @@
+/*
+  Copyright (C) 2024  Tim Zimmermann <tim@linux4.de>
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as
+  published by the Free Software Foundation, either version 3 of the
+  License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.linux4.samsungfwbot.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Response body as an InputStream that gives up once no data arrived for the idle timeout. HttpRequest.timeout only
+// covers the response headers, a connection stalling in the middle of the body would block its reader forever.
+// On timeout the body is closed right away, which cancels the exchange and runs onClose.
+class TimedBodySubscriber extends InputStream implements HttpResponse.BodySubscriber<InputStream> {
+
+    // Marks the end of the body, compared by identity
+    private static final List<ByteBuffer> END = List.of(ByteBuffer.allocate(0));
+
+    private final Duration idleTimeout;
+    private final Runnable onClose;
+    private final BlockingQueue<List<ByteBuffer>> queue = new LinkedBlockingQueue<>();
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private volatile Flow.Subscription subscription;
+    private volatile Throwable failure;
+    private Iterator<ByteBuffer> buffers = Collections.emptyIterator();
+    private ByteBuffer current;
+    private boolean ended = false;
+
+    // idleTimeout null waits as long as it takes
+    TimedBodySubscriber(Duration idleTimeout, Runnable onClose) {
+        this.idleTimeout = idleTimeout;
+        this.onClose = onClose;
+    }
+
+    @Override
+    public CompletionStage<InputStream> getBody() {
+        return CompletableFuture.completedStage(this);
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+
+        if (closed.get())
+            subscription.cancel();
+        else
+            subscription.request(1);
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> item) {
+        queue.offer(item);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        failure = throwable;
+        queue.offer(END);
+    }
+
+    @Override
+    public void onComplete() {
+        queue.offer(END);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+
+        while (current == null || !current.hasRemaining()) {
+            if (closed.get())
+                throw new IOException("Stream closed");
+
+            if (buffers.hasNext()) {
+                current = buffers.next();
+                continue;
+            }
+            if (ended)
+                return -1;
+
+            List<ByteBuffer> next = take();
+            if (closed.get())
+                throw new IOException("Stream closed");
+            if (next == END) {
+                ended = true;
+                if (failure != null)
+                    throw failure instanceof IOException ex ? ex : new IOException(failure);
+                return -1;
+            }
+
+            buffers = next.iterator();
+            subscription.request(1);
+        }
+
+        int count = Math.min(len, current.remaining());
+        current.get(b, off, count);
+
+        return count;
+    }
+
+    private List<ByteBuffer> take() throws IOException {
+        try {
+            List<ByteBuffer> next = idleTimeout != null
+                    ? queue.poll(idleTimeout.toNanos(), TimeUnit.NANOSECONDS) : queue.take();
+
+            if (next == null) {
+                close();
+                throw new HttpTimeoutException("No data received for " + idleTimeout.toMillis() + "ms");
+            }
+
+            return next;
+        } catch (InterruptedException ex) {
+            close();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading the response body");
+        }
+    }
+
+    @Override
+    public int available() {
+        return current != null ? current.remaining() : 0;
+    }
+
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true))
+            return;
+
+        try {
+            Flow.Subscription s = subscription;
+            if (s != null)
+                s.cancel();
+            // Wakes up a read waiting on another thread
+            queue.clear();
+            queue.offer(END);
+        } finally {
+            onClose.run();
+        }
+    }
+
+}